@@ -0,0 +1,171 @@
+package org.quark.dr.canapp;
+
+import org.junit.Test;
+import org.quark.dr.ecu.EcuDatabase;
+import org.quark.dr.ecu.HexCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BusScannerTest {
+
+    /*
+     * ELM without link, records the commands queued
+     */
+    private static class FakeElm extends ElmBase {
+        final ArrayList<String> written = new ArrayList<>();
+
+        FakeElm(String logDir) {
+            super(null, logDir);
+        }
+
+        @Override
+        public void write(String out) {
+            written.add(out);
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean connect(String address) {
+            return true;
+        }
+
+        @Override
+        public boolean reconnect() {
+            return true;
+        }
+
+        @Override
+        public int getMode() {
+            return MODE_BT;
+        }
+
+        @Override
+        protected String writeRaw(String raw_buffer) {
+            return "";
+        }
+
+        @Override
+        protected void sendRaw(String raw_buffer) {
+        }
+
+        @Override
+        protected String readRaw(long timeout) {
+            return null;
+        }
+    }
+
+    private static class Recorder implements BusScanner.Listener {
+        final ArrayList<BusScanner.Responder> found = new ArrayList<>();
+        List<BusScanner.Responder> finished;
+
+        @Override
+        public void onEcuFound(BusScanner.Responder responder) {
+            found.add(responder);
+        }
+
+        @Override
+        public void onScanFinished(List<BusScanner.Responder> responders) {
+            finished = responders;
+        }
+    }
+
+    private static ElmResult response(String command, String hex) {
+        ElmResult result = ElmResult.obtain(command, 0);
+        result.setResponse(HexCodec.decode(hex));
+        return result;
+    }
+
+    private static ElmResult noData(String command) {
+        ElmResult result = ElmResult.obtain(command, 0);
+        result.setError("NO DATA");
+        return result;
+    }
+
+    private static ArrayList<String> ecuCommands(FakeElm elm) {
+        ArrayList<String> commands = new ArrayList<>();
+        for (String command : elm.written) {
+            if (!command.toUpperCase().startsWith("AT"))
+                commands.add(command);
+        }
+        return commands;
+    }
+
+    private static FakeElm createElm() throws IOException {
+        File logDir = File.createTempFile("busscanner", "");
+        assertTrue(logDir.delete() && logDir.mkdirs());
+        return new FakeElm(logDir.getAbsolutePath());
+    }
+
+    @Test
+    public void test_bus_scanner() throws IOException {
+        EcuDatabase db = new EcuDatabase();
+        ArrayList<Integer> addresses = db.getCanAddresses();
+        assertTrue(addresses.size() > 2);
+        FakeElm elm = createElm();
+        Recorder recorder = new Recorder();
+        BusScanner scanner = new BusScanner(elm, db, recorder);
+
+        assertEquals(addresses.size(), scanner.start());
+        assertTrue(scanner.isRunning());
+        assertEquals(addresses.size(), ecuCommands(elm).size());
+
+        // Only the second address answers, even negatively
+        assertTrue(scanner.onElmResult(noData("10C0")));
+        assertTrue(scanner.onElmResult(response("10C0", "7F1012")));
+        for (int i = 2; i < addresses.size(); ++i)
+            assertTrue(scanner.onElmResult(noData("10C0")));
+        ArrayList<String> commands = ecuCommands(elm);
+        assertEquals(addresses.size() + 6, commands.size());
+        assertEquals("2180", commands.get(addresses.size()));
+        assertTrue(recorder.found.isEmpty());
+
+        // The answer to a lost request (queue cleared) is skipped
+        assertTrue(scanner.onElmResult(noData("1003")));
+        assertTrue(scanner.onElmResult(response("22F18A", "62F18A414243")));
+        assertTrue(scanner.onElmResult(noData("22F194")));
+        assertTrue(recorder.found.isEmpty());
+        assertTrue(scanner.onElmResult(noData("22F195")));
+        assertEquals(1, recorder.found.size());
+        BusScanner.Responder responder = recorder.found.get(0);
+        assertEquals((int) addresses.get(1), responder.addressId);
+        assertTrue(responder.ecuInfos.isEmpty());
+        assertNotNull(recorder.finished);
+        assertEquals(1, recorder.finished.size());
+        assertFalse(scanner.isRunning());
+
+        // Scan over, the results are not claimed
+        assertFalse(scanner.onElmResult(noData("2180")));
+    }
+
+    @Test
+    public void test_bus_scanner_cancel() throws IOException {
+        EcuDatabase db = new EcuDatabase();
+        FakeElm elm = createElm();
+        Recorder recorder = new Recorder();
+        BusScanner scanner = new BusScanner(elm, db, recorder);
+
+        scanner.start();
+        assertTrue(scanner.onElmResult(response("10C0", "50C0")));
+        scanner.cancel();
+        assertFalse(scanner.isRunning());
+
+        // Requests in flight when cancelled are dropped until the queue is empty
+        assertTrue(scanner.onElmResult(noData("10C0")));
+        assertTrue(scanner.onElmResult(response("2180", "6180")));
+        assertFalse(scanner.onElmResult(response("21A0", "61A0")));
+        assertTrue(recorder.found.isEmpty());
+        assertNull(recorder.finished);
+
+        scanner.onQueueEmpty();
+        assertFalse(scanner.onElmResult(response("2180", "6180")));
+        assertFalse(scanner.onElmResult(noData("10C0")));
+    }
+}
@@ -0,0 +1,60 @@
+package org.quark.dr.canapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ElmAtStateTest {
+
+    private static boolean isUnchanged(ElmAtState state, String command) {
+        return state.isUnchanged(ElmAtState.normalize(command));
+    }
+
+    private static void update(ElmAtState state, String command, String answer) {
+        state.update(ElmAtState.normalize(command), answer);
+    }
+
+    @Test
+    public void test_at_state() {
+        assertEquals("ATSH7E0", ElmAtState.normalize("AT SH 7e0"));
+        assertEquals("ATSH", ElmAtState.getSetting("ATSH7E0"));
+        assertEquals("ATFCSH", ElmAtState.getSetting("ATFCSH7E0"));
+        assertEquals("ATS", ElmAtState.getSetting("ATS0"));
+        assertEquals("ATSP", ElmAtState.getSetting("ATSP6"));
+        assertEquals("ATAL", ElmAtState.getSetting("ATNL"));
+        assertNull(ElmAtState.getSetting("ATSI"));
+        assertNull(ElmAtState.getSetting("ATZ"));
+        assertNull(ElmAtState.getSetting("ATD"));
+
+        ElmAtState state = new ElmAtState();
+        // Nothing known before a reset
+        assertFalse(isUnchanged(state, "AT E1"));
+        assertFalse(isUnchanged(state, "AT Z"));
+
+        update(state, "AT Z", "ATZ\n\nELM327 v1.5\n");
+        assertTrue(isUnchanged(state, "AT E1"));
+        assertTrue(isUnchanged(state, "AT H0"));
+        assertFalse(isUnchanged(state, "AT S0"));
+        assertFalse(isUnchanged(state, "AT Z"));
+
+        update(state, "AT SH 7E0", "AT SH 7E0\nOK\n");
+        update(state, "AT S0", "AT S0\nOK\n");
+        assertTrue(isUnchanged(state, "AT SH 7E0"));
+        assertTrue(isUnchanged(state, "AT S0"));
+        assertFalse(isUnchanged(state, "AT SH 7E1"));
+        assertFalse(isUnchanged(state, "AT S1"));
+
+        // Refused command, the setting is unknown
+        update(state, "AT SH 7E1", "AT SH 7E1\n?\n");
+        assertFalse(isUnchanged(state, "AT SH 7E0"));
+        assertFalse(isUnchanged(state, "AT SH 7E1"));
+
+        // Warm start back to the defaults
+        update(state, "AT WS", "AT WS\n\nELM327 v1.5\n");
+        assertFalse(isUnchanged(state, "AT S0"));
+        assertTrue(isUnchanged(state, "AT E1"));
+
+        state.invalidate();
+        assertFalse(isUnchanged(state, "AT E1"));
+    }
+}
@@ -0,0 +1,169 @@
+package org.quark.dr.canapp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.is;
+
+public class ElmPromptReaderTest {
+
+    /*
+     * Source delivering the given chunks, one per read
+     */
+    private static class ChunkSource implements ElmPromptReader.Source {
+        private final String[] mChunks;
+        private int mIndex;
+        int reads;
+
+        ChunkSource(String... chunks) {
+            mChunks = chunks;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length, long timeout) {
+            ++reads;
+            if (mIndex >= mChunks.length)
+                return -1;
+            byte[] chunk = mChunks[mIndex++].getBytes();
+            System.arraycopy(chunk, 0, buffer, offset, chunk.length);
+            return chunk.length;
+        }
+    }
+
+    @Test
+    public void test_prompt_reader() throws IOException {
+        // Prompt split across reads, empty reads (timeouts) and several prompts in one read
+        ChunkSource source = new ChunkSource("0210C0\r", "", "0250C0\r\r", ">ATH0\rOK\r\r>",
+                "0322F1\r", "037F2278\r\r>0322F1\r0562F18", "0AB\r\r>");
+        ElmPromptReader reader = new ElmPromptReader(source, 0);
+        assertThat(reader.readResponse(), is("0210C0\n0250C0"));
+        assertThat(reader.readResponse(), is("ATH0\nOK"));
+        assertThat(reader.readResponse(), is("0322F1\n037F2278"));
+        assertThat(reader.readResponse(), is("0322F1\n0562F180AB"));
+        assertThat(source.reads, is(7));
+
+        try {
+            reader.readResponse();
+            fail();
+        } catch (IOException e) {
+            // End of stream
+        }
+    }
+
+    @Test
+    public void test_prompt_reader_timeout() throws IOException {
+        ElmPromptReader reader = new ElmPromptReader(new ElmPromptReader.Source() {
+            @Override
+            public int read(byte[] buffer, int offset, int length, long timeout) {
+                return 0;
+            }
+        }, 50);
+        long start = System.currentTimeMillis();
+        try {
+            reader.readResponse();
+            fail();
+        } catch (ElmPromptReader.TimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start >= 50);
+        }
+    }
+
+    @Test
+    public void test_prompt_reader_read_timeout() throws IOException {
+        // Reader without deadline, the pipelined reads give their own
+        ElmPromptReader reader = new ElmPromptReader(new ElmPromptReader.Source() {
+            @Override
+            public int read(byte[] buffer, int offset, int length, long timeout) {
+                assertTrue(timeout > 0);
+                return 0;
+            }
+        }, 0);
+        try {
+            reader.readResponse(50);
+            fail();
+        } catch (ElmPromptReader.TimeoutException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void test_prompt_reader_overflow() {
+        ElmPromptReader reader = new ElmPromptReader(new ElmPromptReader.Source() {
+            @Override
+            public int read(byte[] buffer, int offset, int length, long timeout) {
+                for (int i = 0; i < length; ++i)
+                    buffer[offset + i] = 'A';
+                return length;
+            }
+        }, 0);
+        try {
+            reader.readResponse();
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("ELM response overflow"));
+        }
+    }
+
+    @Test
+    public void test_ring_buffer() throws Exception {
+        final ElmRingBuffer ringBuffer = new ElmRingBuffer(64);
+        ElmPromptReader reader = new ElmPromptReader(ringBuffer, 2000);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String[] chunks = {"0210C0\r", "0250C0\r\r", ">ATH0\rOK\r\r>", "0322F1\r"};
+                try {
+                    for (String chunk : chunks) {
+                        Thread.sleep(20);
+                        ringBuffer.write(chunk.getBytes(), chunk.length());
+                    }
+                    ringBuffer.close(null);
+                } catch (InterruptedException e) {
+                    ringBuffer.close("Interrupted");
+                }
+            }
+        });
+        producer.start();
+        assertThat(reader.readResponse(), is("0210C0\n0250C0"));
+        assertThat(reader.readResponse(), is("ATH0\nOK"));
+        try {
+            reader.readResponse();
+            fail();
+        } catch (IOException e) {
+            // Closed without prompt
+        }
+        producer.join();
+    }
+
+    @Test
+    public void test_ring_buffer_deadline() throws Exception {
+        // Data trickling without any prompt must not extend the deadline
+        final ElmRingBuffer ringBuffer = new ElmRingBuffer(4096);
+        ElmPromptReader reader = new ElmPromptReader(ringBuffer, 200);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 100; ++i) {
+                        Thread.sleep(10);
+                        ringBuffer.write("0".getBytes(), 1);
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped by the test
+                }
+            }
+        });
+        producer.start();
+        long start = System.currentTimeMillis();
+        try {
+            reader.readResponse();
+            fail();
+        } catch (ElmPromptReader.TimeoutException e) {
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue(elapsed >= 200 && elapsed < 600);
+        }
+        producer.interrupt();
+        producer.join();
+    }
+}
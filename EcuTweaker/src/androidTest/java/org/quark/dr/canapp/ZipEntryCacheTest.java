@@ -0,0 +1,97 @@
+package org.quark.dr.canapp;
+
+import org.junit.Test;
+import org.quark.dr.ecu.ZipFileSystem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipEntryCacheTest {
+
+    /*
+     * Caches the raw bytes of the entries, counts the archive reads
+     */
+    private static class BytesCache extends ZipEntryCache<byte[]> {
+        int loads;
+
+        BytesCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(byte[] value) {
+            return value.length;
+        }
+
+        @Override
+        protected byte[] load(ZipFileSystem zipFileSystem, String filename) {
+            ++loads;
+            return zipFileSystem.getZipFileAsBytes(filename);
+        }
+    }
+
+    private static byte[] content(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private static void writeZip(File file, int length, int value) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        for (String name : new String[]{"a.gif", "b.gif", "c.gif"}) {
+            out.putNextEntry(new ZipEntry(name));
+            out.write(content(length, value));
+            out.closeEntry();
+        }
+        out.close();
+    }
+
+    private static ZipFileSystem open(File zip, File appDir) {
+        ZipFileSystem zipFileSystem = new ZipFileSystem(zip.getAbsolutePath(), appDir.getAbsolutePath());
+        zipFileSystem.getZipEntries();
+        return zipFileSystem;
+    }
+
+    @Test
+    public void test_zip_entry_cache() throws IOException {
+        File appDir = File.createTempFile("zipcache", "");
+        assertTrue(appDir.delete() && appDir.mkdirs());
+        File zip = new File(appDir, "ecu.zip");
+        writeZip(zip, 100, 1);
+        assertTrue(zip.setLastModified(System.currentTimeMillis() - 60000));
+
+        BytesCache cache = new BytesCache(250);
+        ZipFileSystem zipFileSystem = open(zip, appDir);
+        assertArrayEquals(content(100, 1), cache.get(zipFileSystem, "a.gif"));
+        assertArrayEquals(content(100, 1), cache.get(zipFileSystem, "b.gif"));
+        assertNull(cache.get(zipFileSystem, "missing.gif"));
+        assertEquals(3, cache.loads);
+
+        // Size bound : c evicts the least recently used entry (a)
+        cache.get(zipFileSystem, "b.gif");
+        cache.get(zipFileSystem, "c.gif");
+        assertEquals(1, cache.getLruCache().evictionCount());
+        assertEquals(200, cache.getLruCache().size());
+        cache.get(zipFileSystem, "b.gif");
+        assertEquals(4, cache.loads);
+        cache.get(zipFileSystem, "a.gif");
+        assertEquals(5, cache.loads);
+
+        // Same unchanged archive reopened, the cache is kept
+        zipFileSystem = open(zip, appDir);
+        cache.get(zipFileSystem, "a.gif");
+        assertEquals(5, cache.loads);
+
+        // Archive updated in place, the values are reloaded
+        writeZip(zip, 120, 2);
+        zipFileSystem = open(zip, appDir);
+        assertArrayEquals(content(120, 2), cache.get(zipFileSystem, "a.gif"));
+        assertEquals(6, cache.loads);
+    }
+}
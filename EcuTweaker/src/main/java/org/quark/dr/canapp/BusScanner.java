@@ -0,0 +1,272 @@
+package org.quark.dr.canapp;
+
+import org.quark.dr.ecu.EcuDatabase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Whole CAN bus identification in one pass
+ * Every CAN address of the database is probed (10C0) with a short timeout,
+ * the ECUs answering anything (even a negative response) are then asked for
+ * their old (2180) and new (22F1xx) identifiers, matched in the database.
+ * The probes are queued at once on a single CAN init, the adapter addressing
+ * being switched between ECUs by ElmBase.selectCanEcu, and the results are
+ * matched to the addresses by order
+ * UI thread only
+ */
+public class BusScanner {
+    public interface Listener {
+        void onEcuFound(Responder responder);
+        void onScanFinished(List<Responder> responders);
+    }
+
+    // Timeouts (ms) of the probes and of the identification reads
+    private static final int PROBE_TIMEOUT = 200;
+    private static final int IDENT_TIMEOUT = 1000;
+    private static final String PROBE = "10C0";
+    private static final String[] IDENT_COMMANDS = {
+            "2180", "1003", "22F1A0", "22F18A", "22F194", "22F195"
+    };
+
+    /*
+     * ECU that answered the probe, with its identifiers and the matching
+     * database entries once identified
+     */
+    public static class Responder {
+        public final int addressId;
+        public final String function;
+        public String supplier = "", version = "", softVersion = "", diagVersion = "";
+        public final ArrayList<EcuDatabase.EcuInfo> ecuInfos = new ArrayList<>();
+        public boolean exactMatch;
+        private final EcuDatabase.EcuIdentifierNew identifierNew;
+        private boolean oldIdentified;
+        private int pending;
+
+        Responder(EcuDatabase db, int addressId) {
+            this.addressId = addressId;
+            this.function = db.getFunctionByAddress(addressId);
+            identifierNew = db.new EcuIdentifierNew();
+            identifierNew.reInit(addressId);
+        }
+    }
+
+    /*
+     * Request queued to the ELM, in sending order
+     */
+    private static class Expected {
+        final int addressId;
+        final String command;
+        final Responder responder;
+
+        Expected(int addressId, String command, Responder responder) {
+            this.addressId = addressId;
+            this.command = command;
+            this.responder = responder;
+        }
+    }
+
+    private final ElmBase mElm;
+    private final EcuDatabase mEcuDatabase;
+    private final Listener mListener;
+    private final ArrayDeque<Expected> mExpected = new ArrayDeque<>();
+    private final ArrayList<Responder> mResponders = new ArrayList<>();
+    private boolean mRunning;
+    // Cancelled, the requests still queued or in flight are dropped until
+    // the ELM queue is empty
+    private boolean mCancelling;
+
+    public BusScanner(ElmBase elm, EcuDatabase db, Listener listener) {
+        mElm = elm;
+        mEcuDatabase = db;
+        mListener = listener;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /*
+     * Queues the probes of all the CAN addresses, returns their number
+     */
+    public int start() {
+        mExpected.clear();
+        mResponders.clear();
+        ArrayList<Integer> addresses = mEcuDatabase.getCanAddresses();
+        if (addresses.isEmpty())
+            return 0;
+
+        mRunning = true;
+        mCancelling = false;
+        mElm.setSessionActive(false);
+        mElm.initElm();
+        boolean first = true;
+        for (int addressId : addresses) {
+            String rxa = mEcuDatabase.getRxAddressById(addressId);
+            String txa = mEcuDatabase.getTxAddressById(addressId);
+            if (first) {
+                mElm.initCan(rxa, txa);
+                mElm.setTimeOut(PROBE_TIMEOUT);
+                first = false;
+            } else {
+                mElm.selectCanEcu(rxa, txa);
+            }
+            send(addressId, PROBE, null);
+        }
+        return addresses.size();
+    }
+
+    /*
+     * Stops the scan, its results keep being claimed (and ignored) until
+     * onQueueEmpty
+     */
+    public void cancel() {
+        if (mRunning)
+            mCancelling = true;
+        mRunning = false;
+    }
+
+    /*
+     * The ELM queue is empty, no scan result can come anymore once cancelled
+     */
+    public void onQueueEmpty() {
+        if (mCancelling) {
+            mCancelling = false;
+            mExpected.clear();
+        }
+    }
+
+    private void send(int addressId, String command, Responder responder) {
+        mExpected.add(new Expected(addressId, command, responder));
+        mElm.write(command);
+    }
+
+    /*
+     * Returns true if the result belongs to the scan
+     */
+    public boolean onElmResult(ElmResult result) {
+        if (!mRunning && !mCancelling)
+            return false;
+        if (result.isAtCommand())
+            return true;
+
+        // Results come in sending order, skip the ones lost (queue cleared)
+        boolean found = false;
+        for (Expected e : mExpected) {
+            if (e.command.equals(result.command)) {
+                found = true;
+                break;
+            }
+        }
+        if (!found)
+            return false;
+        Expected expected = mExpected.poll();
+        while (!expected.command.equals(result.command)) {
+            if (!mCancelling && expected.responder != null)
+                onIdentifierRead(expected.responder, null);
+            expected = mExpected.poll();
+        }
+        if (mCancelling)
+            return true;
+
+        if (expected.responder == null)
+            onProbeResult(expected.addressId, result);
+        else
+            onIdentifierRead(expected.responder, result);
+
+        if (mExpected.isEmpty())
+            finish();
+        return true;
+    }
+
+    private void onProbeResult(int addressId, ElmResult result) {
+        // NO DATA, nobody at this address
+        if (result.status == ElmResult.STATUS_ERROR || result.response.length == 0)
+            return;
+
+        Responder responder = new Responder(mEcuDatabase, addressId);
+        mResponders.add(responder);
+        mElm.selectCanEcu(mEcuDatabase.getRxAddressById(addressId),
+                mEcuDatabase.getTxAddressById(addressId));
+        mElm.setTimeOut(IDENT_TIMEOUT);
+        for (String command : IDENT_COMMANDS) {
+            ++responder.pending;
+            send(addressId, command, responder);
+        }
+        mElm.setTimeOut(PROBE_TIMEOUT);
+    }
+
+    /*
+     * result is null if the request was lost
+     */
+    private void onIdentifierRead(Responder responder, ElmResult result) {
+        if (result != null && result.status != ElmResult.STATUS_ERROR
+                && result.response.length > 0)
+            readIdentifier(responder, result);
+        if (--responder.pending == 0)
+            identify(responder);
+    }
+
+    private void readIdentifier(Responder responder, ElmResult result) {
+        byte[] response = result.response;
+        String ecuResponse = result.getResponseHex();
+
+        if (response.length >= 20 && response[0] == 0x61 && (response[1] & 0xFF) == 0x80) {
+            responder.supplier = new String(response, 8, 3);
+            responder.softVersion = ecuResponse.substring(32, 36);
+            responder.version = ecuResponse.substring(36, 40);
+            responder.diagVersion = ecuResponse.substring(14, 16);
+            EcuDatabase.EcuInfo ecuInfo = mEcuDatabase.identifyOldEcu(responder.addressId,
+                    responder.supplier, responder.softVersion, responder.version,
+                    response[7] & 0xFF);
+            if (ecuInfo != null) {
+                responder.ecuInfos.add(ecuInfo);
+                responder.exactMatch = ecuInfo.exact_match;
+            }
+            responder.oldIdentified = true;
+            return;
+        }
+
+        if (response.length >= 3 && response[0] == 0x62 && (response[1] & 0xFF) == 0xF1) {
+            EcuDatabase.EcuIdentifierNew identifier = responder.identifierNew;
+            String value = ecuResponse.substring(6);
+            switch (response[2] & 0xFF) {
+                case 0xA0:
+                    identifier.diag_version = value;
+                    break;
+                case 0x8A:
+                    identifier.supplier = value;
+                    break;
+                case 0x94:
+                    identifier.version = value;
+                    break;
+                case 0x95:
+                    identifier.soft_version = value;
+                    break;
+            }
+        }
+    }
+
+    private void identify(Responder responder) {
+        EcuDatabase.EcuIdentifierNew identifier = responder.identifierNew;
+        if (!responder.oldIdentified && identifier.isFullyFilled()) {
+            responder.supplier = identifier.supplier;
+            responder.version = identifier.version;
+            responder.softVersion = identifier.soft_version;
+            responder.diagVersion = identifier.diag_version;
+            for (EcuDatabase.EcuInfo ecuInfo : mEcuDatabase.identifyNewEcu(identifier)) {
+                responder.ecuInfos.add(ecuInfo);
+                if (ecuInfo.exact_match)
+                    responder.exactMatch = true;
+            }
+        }
+        mListener.onEcuFound(responder);
+    }
+
+    private void finish() {
+        mRunning = false;
+        mExpected.clear();
+        mListener.onScanFinished(new ArrayList<>(mResponders));
+    }
+}
@@ -0,0 +1,94 @@
+package org.quark.dr.canapp;
+
+import java.util.HashMap;
+
+/*
+ * Model of the ELM327 settings, built from the AT commands accepted by the
+ * adapter. A command setting a value the adapter already has can be skipped,
+ * settings not in the model (never set, refused, or invalidated) are always sent
+ * Commands are given without spaces and in upper case (normalize)
+ * Only used by the connected thread
+ */
+class ElmAtState {
+    // Settings followed by their value (ATSH7E0, ATSP6...), longest names first
+    private static final String[] VALUE_SETTINGS = {
+            "ATFCSH", "ATFCSD", "ATFCSM", "ATCAF", "ATCFC", "ATCRA", "ATIIA",
+            "ATSH", "ATSP", "ATST", "ATSW", "ATWM", "ATIB", "ATKW", "ATAT"
+    };
+    // On/off settings (ATE0, ATE1...)
+    private static final String[] SWITCH_SETTINGS = {
+            "ATE", "ATH", "ATL", "ATS", "ATD", "ATR"
+    };
+    // Values set by AT Z, AT WS and AT D
+    private static final String[] DEFAULTS = {
+            "ATE1", "ATH0", "ATR1", "ATD0", "ATNL", "ATCAF1", "ATCFC1", "ATAT1"
+    };
+
+    private final HashMap<String, String> mSettings = new HashMap<>();
+
+    static String normalize(String command) {
+        return command.replace(" ", "").toUpperCase();
+    }
+
+    /*
+     * Name of the setting changed by command, null if it is not a setting
+     * (reset, protocol init, information...)
+     */
+    static String getSetting(String command) {
+        if (command.equals("ATAL") || command.equals("ATNL"))
+            return "ATAL";
+        if (command.length() == 4 && (command.charAt(3) == '0' || command.charAt(3) == '1')) {
+            for (String setting : SWITCH_SETTINGS) {
+                if (command.startsWith(setting))
+                    return setting;
+            }
+        }
+        for (String setting : VALUE_SETTINGS) {
+            if (command.startsWith(setting))
+                return setting;
+        }
+        return null;
+    }
+
+    static boolean isReset(String command) {
+        return command.equals("ATZ") || command.equals("ATWS") || command.equals("ATD");
+    }
+
+    /*
+     * True if command would not change the adapter settings
+     */
+    boolean isUnchanged(String command) {
+        String setting = getSetting(command);
+        return setting != null && command.equals(mSettings.get(setting));
+    }
+
+    /*
+     * Records command once written, answer is the adapter response
+     */
+    void update(String command, String answer) {
+        if (isReset(command)) {
+            reset();
+            return;
+        }
+        String setting = getSetting(command);
+        if (setting == null)
+            return;
+        if (answer.contains("OK"))
+            mSettings.put(setting, command);
+        else
+            mSettings.remove(setting);
+    }
+
+    void reset() {
+        mSettings.clear();
+        for (String command : DEFAULTS)
+            mSettings.put(getSetting(command), command);
+    }
+
+    /*
+     * Forgets everything, the adapter state is unknown (new link)
+     */
+    void invalidate() {
+        mSettings.clear();
+    }
+}
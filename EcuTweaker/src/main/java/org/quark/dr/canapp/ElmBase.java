@@ -5,9 +5,12 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 
+import org.quark.dr.ecu.Ecu;
 import org.quark.dr.ecu.EcuDatabase;
+import org.quark.dr.ecu.HexCodec;
 import org.quark.dr.ecu.IsoTPDecode;
 import org.quark.dr.ecu.IsoTPEncode;
+import org.quark.dr.ecu.IsoTPReassembler;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -18,6 +21,11 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.Math.min;
 
@@ -32,7 +40,17 @@ public abstract class ElmBase {
     public static final int MODE_BT = 1;
     public static final int MODE_USB = 2;
 
-    protected ArrayList<String> mMessages;
+    // Tester present (013E) period while a diagnostic session is active
+    private static final long TESTER_PRESENT_PERIOD = 1500;
+    // Maximum number of commands sent ahead of their responses in pipelined mode
+    public static final int PIPELINE_DEPTH = 4;
+    // Maximum wait for each pipelined response, and for late prompts after a failure
+    private static final long PIPELINE_READ_TIMEOUT = 2000;
+    private static final long PIPELINE_DRAIN_TIMEOUT = 300;
+    private static final long POLL_RATE_PERIOD = 10000;
+    private static final int MAX_ENCODED_COMMANDS = 256;
+
+    protected BlockingQueue<String> mMessages;
     protected int mRxa, mTxa;
     protected HashMap<String, String> mEcuErrorCodeMap;
     protected volatile Handler mConnectionHandler;
@@ -42,10 +60,33 @@ public abstract class ElmBase {
     static protected ElmBase mSingleton = null;
     protected boolean mConnecting = false;
     private int mState;
-    protected boolean mSessionActive;
+    protected volatile boolean mSessionActive;
     private EcuDatabase mEcuDatabase;
     private boolean mCFC0;
     private String mProtocol;
+    private volatile boolean mPipelined;
+    private boolean mPipelineFallback;
+    private int mPollCount;
+    private long mPollRateTimer;
+    private volatile float mPollsPerSecond;
+    // Message taken from the queue but not processed yet, only used by the connected thread
+    private String mDeferredMessage;
+    // Only used by the connected thread
+    private final IsoTPReassembler mReassembler = new IsoTPReassembler();
+    // Settings of the adapter, only used by the connected thread
+    private final ElmAtState mAtState = new ElmAtState();
+    private volatile boolean mAtStateInvalid;
+    // Protocol initialized since the last adapter reset, null if none
+    private volatile String mInitializedProtocol;
+    private boolean mResetPending;
+    // Pre-encoded commands, only used by the connected thread
+    private final LinkedHashMap<String, byte[]> mEncodedCommands =
+            new LinkedHashMap<String, byte[]>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_ENCODED_COMMANDS;
+        }
+    };
 
     static public ElmBase getSingleton() {
         return mSingleton;
@@ -134,6 +175,33 @@ public abstract class ElmBase {
     public abstract int getMode();
 
     protected abstract String writeRaw(String raw_buffer);
+    /*
+     * Split writeRaw used by the pipelined mode :
+     * sendRaw does not wait for the prompt, readRaw waits for the next one
+     * during timeout ms and returns null if it did not come (the link is kept)
+     */
+    protected abstract void sendRaw(String raw_buffer);
+    protected abstract String readRaw(long timeout);
+    protected boolean supportsPipelining(){
+        return false;
+    }
+
+    /*
+     * Returns the bytes sent to the ELM for this command (ASCII + carriage return),
+     * polled requests are encoded once
+     */
+    protected byte[] encodeCommand(String raw_buffer){
+        byte[] encoded = mEncodedCommands.get(raw_buffer);
+        if (encoded == null) {
+            int length = raw_buffer.length();
+            encoded = new byte[length + 1];
+            for (int i = 0; i < length; ++i)
+                encoded[i] = (byte) raw_buffer.charAt(i);
+            encoded[length] = '\r';
+            mEncodedCommands.put(raw_buffer, encoded);
+        }
+        return encoded;
+    }
     public boolean hasDevicePermission(){
         return true;
     }
@@ -143,7 +211,7 @@ public abstract class ElmBase {
 
     public ElmBase(Handler handler, String logDir) {
         mProtocol = "UNDEFINED";
-        mMessages = new ArrayList<>();
+        mMessages = new LinkedBlockingQueue<>();
         mConnectionHandler = handler;
         mLogFile = null;
         mLogDir = logDir;
@@ -159,6 +227,46 @@ public abstract class ElmBase {
         mCFC0 = b;
     }
 
+    /*
+     * Pipelined mode keeps up to PIPELINE_DEPTH single frame CAN reads (21xx,
+     * 22xxxx) in flight, for adapters buffering their input (STN11xx and some
+     * clones). Responses are matched to the requests by order, the link falls
+     * back to lockstep mode (until next ELM init) as soon as the adapter reports
+     * an error or misses a response, the reads in flight then fail (not re-sent)
+     */
+    public void setPipelining(boolean b){
+        mPipelined = b;
+    }
+
+    public boolean isPipelining(){
+        return mPipelined && !mPipelineFallback && supportsPipelining();
+    }
+
+    public float getPollsPerSecond(){
+        return mPollsPerSecond;
+    }
+
+    private void countPoll(){
+        long now = System.currentTimeMillis();
+        if (mPollCount == 0)
+            mPollRateTimer = now;
+        ++mPollCount;
+        long elapsed = now - mPollRateTimer;
+        if (elapsed >= POLL_RATE_PERIOD){
+            mPollsPerSecond = (mPollCount - 1) * 1000.f / elapsed;
+            mPollCount = 0;
+            try {
+                if (mLogFile != null) {
+                    mLogFile.append("POLL RATE: ").append(getTimeStamp())
+                            .append(String.format("%.1f/s", mPollsPerSecond))
+                            .append(isPipelining() ? " (pipelined)\n" : " (lockstep)\n");
+                }
+            } catch (IOException e) {
+                logInfo("Log error : " + e.getMessage());
+            }
+        }
+    }
+
     public void changeHandler(Handler h) {
         synchronized (this) {
             if (mConnectionHandler != null) {
@@ -187,6 +295,9 @@ public abstract class ElmBase {
 
     protected void setState(int state) {
         mState = state;
+        // The adapter has to be reset again on the next link
+        if (state != STATE_CONNECTED)
+            mInitializedProtocol = null;
         // Give the new state to the Handler so the UI Activity can update
         synchronized (this) {
             if (mConnectionHandler != null) {
@@ -267,14 +378,28 @@ public abstract class ElmBase {
                 .format(new Date()) + "] ";
     }
 
+    /*
+     * The reset (AT Z, about a second) is sent by the next protocol init, it is
+     * skipped if the adapter is already initialized for the same protocol :
+     * the init sequence then only sends the settings that differ
+     */
     public void initElm() {
         mProtocol = "UNDEFINED";
+        mPipelineFallback = false;
+        mResetPending = true;
         logInfo("Re-intializing ELM...");
-        write("AT Z");        // reset ELM
+    }
+
+    private void resetElm(String protocol) {
+        if (mResetPending && !protocol.equals(mInitializedProtocol))
+            write("AT Z");        // reset ELM
+        mResetPending = false;
+        mInitializedProtocol = protocol;
     }
 
     public void initCan(String rxa, String txa) {
         logInfo("Intializing CAN protocol...");
+        resetElm("CAN");
         mProtocol = "CAN";
         write("AT E1");
         write("AT S0");
@@ -291,8 +416,24 @@ public abstract class ElmBase {
         write("AT FC SM 1");
         mRxa = Integer.parseInt(rxa, 16);
         mTxa = Integer.parseInt(txa, 16);
-        if (mCFC0)
-            write("AT CFC0");
+        write(mCFC0 ? "AT CFC0" : "AT CFC1");
+    }
+
+    /*
+     * Multi ECU session : addresses another ECU on the CAN bus initialized by
+     * initCan, the addressing commands are only sent to the adapter if they
+     * change something, so requests to several ECUs can be interleaved
+     */
+    public void selectCanEcu(String rxa, String txa) {
+        if (!mProtocol.equals("CAN")) {
+            initCan(rxa, txa);
+            return;
+        }
+        write("AT SH " + txa.toUpperCase());
+        write("AT CRA " + rxa.toUpperCase());
+        write("AT FC SH " + txa.toUpperCase());
+        mRxa = Integer.parseInt(rxa, 16);
+        mTxa = Integer.parseInt(txa, 16);
     }
 
     private void initIso(){
@@ -307,6 +448,7 @@ public abstract class ElmBase {
 
     public void initKwp(String addr, boolean fastInit) {
         logInfo("Intializing KPW2000 protocol...");
+        resetElm("KWP2000");
         mProtocol = "KWP2000";
         mRxa = 0xF1;
         mTxa = Integer.parseInt(addr, 16);
@@ -334,6 +476,7 @@ public abstract class ElmBase {
 
     public void initIso8(String addr) {
         logInfo("Intializing ISO8 protocol...");
+        resetElm("ISO8");
         mProtocol = "ISO8";
         mRxa = 0xF1;
         mTxa = Integer.parseInt(addr, 16);
@@ -372,51 +515,46 @@ public abstract class ElmBase {
     }
 
     public boolean isHexadecimal(String text) {
-        char[] hexDigits = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
-                'a', 'b', 'c', 'd', 'e', 'f', 'A', 'B', 'C', 'D', 'E', 'F'};
-
-        for (char symbol : text.toCharArray()) {
-            boolean found = false;
-            for (char hexDigit : hexDigits) {
-                if (symbol == hexDigit) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found)
-                return false;
-        }
-        return true;
+        return HexCodec.isHexadecimal(text);
     }
 
-    public synchronized void clearMessages(){
+    public void clearMessages(){
         mMessages.clear();
+        // A dropped reset or init block has to be sent again by the next init
+        mInitializedProtocol = null;
     }
 
     protected void connectedThreadMainLoop() {
         long timer = System.currentTimeMillis();
         mRunningStatus = true;
+        // New link, the adapter may have been reset
+        mInitializedProtocol = null;
+        mAtStateInvalid = false;
+        mAtState.invalidate();
 
         /*
          * Keep listening to the InputStream while connected
          * Thread can be stopped by switching the running status member
+         * The thread parks on the message queue, the wait is bounded by
+         * the next tester present deadline
          */
         while (mRunningStatus) {
-            String message = "";
-            int num_queue = 0;
-            boolean messagePresent = false;
-
-            // Synchronized message extraction
-            synchronized (this) {
-                if ( ! ElmBase.this.mMessages.isEmpty() ) {
-                    message = mMessages.get(0);
-                    mMessages.remove(0);
-                    num_queue = mMessages.size();
-                    messagePresent = true;
+            long waitTime = TESTER_PRESENT_PERIOD;
+            boolean keepAlive = mProtocol.equals("CAN") && mSessionActive && mRxa > 0;
+            if (keepAlive)
+                waitTime = Math.max(0, TESTER_PRESENT_PERIOD - (System.currentTimeMillis() - timer));
+
+            String message = mDeferredMessage;
+            mDeferredMessage = null;
+            if (message == null) {
+                try {
+                    message = mMessages.poll(waitTime, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
                 }
             }
 
-            if (messagePresent){
+            if (message != null){
                 int message_len = message.length();
                 if ((message_len > 6) && message.substring(0, 6).equalsIgnoreCase("DELAY:")) {
                     int delay = Integer.parseInt(message.substring(6));
@@ -426,24 +564,23 @@ public abstract class ElmBase {
                         break;
                     }
                 } else if ((message_len > 2) && message.substring(0, 2).equalsIgnoreCase("AT")) {
-                    String result = writeRaw(message);
-                    result = message + ";" + result;
-
-                    int result_length = result.length();
-                    byte[] tmpbuf = new byte[result_length];
-                    System.arraycopy(result.getBytes(), 0, tmpbuf, 0, result_length);
-                    synchronized (this) {
-                        if (mConnectionHandler != null) {
-                            mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_READ,
-                                    result_length, mTxa, tmpbuf).sendToTarget();
-                            mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_QUEUE_STATE,
-                                    num_queue, -1, null).sendToTarget();
-                        }
+                    if (mAtStateInvalid) {
+                        mAtStateInvalid = false;
+                        mAtState.invalidate();
+                    }
+                    // Settings the adapter already has are not sent
+                    if (!mAtState.isUnchanged(ElmAtState.normalize(message))) {
+                        ElmResult result = ElmResult.obtain(message, System.currentTimeMillis());
+                        result.setText(writeSetting(message));
+                        postResult(result);
                     }
+                    postQueueState();
                 } else {
                     if (mProtocol.equals("CAN")) {
                         if (mCFC0)
                             sendCanCFC0(message);
+                        else if (isPipelining() && isPipelinedRead(message))
+                            sendCanPipelined(message);
                         else
                             sendCan(message);
                     } else {
@@ -451,26 +588,15 @@ public abstract class ElmBase {
                         sendISO(message);
                     }
 
-                    synchronized (this) {
-                        if (mConnectionHandler != null) {
-                            mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_QUEUE_STATE,
-                                    num_queue, -1, null).sendToTarget();
-                        }
-                    }
+                    postQueueState();
                     // Reset tester_present timer
                     // This can speed up things
                     timer = System.currentTimeMillis();
                 }
             }
 
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                break;
-            }
-
             // Keep session alive
-            if (mProtocol.equals("CAN") && mSessionActive && ((System.currentTimeMillis() - timer) > 1500) && mRxa > 0) {
+            if (keepAlive && mRunningStatus && ((System.currentTimeMillis() - timer) >= TESTER_PRESENT_PERIOD)) {
                 timer = System.currentTimeMillis();
                 writeRaw("013E");
             }
@@ -479,12 +605,83 @@ public abstract class ElmBase {
         setState(STATE_DISCONNECTED);
     }
 
+    /*
+     * Writes an AT command and records its effect on the adapter settings
+     */
+    private String writeSetting(String message) {
+        String answer = writeRaw(message);
+        String command = ElmAtState.normalize(message);
+        if (!ElmAtState.isReset(command))
+            checkAdapterReset(answer);
+        mAtState.update(command, answer);
+        return answer;
+    }
+
+    /*
+     * An ELM327 banner in an answer means the adapter restarted by itself
+     * (power drop while cranking...), its settings are lost
+     */
+    private void checkAdapterReset(String answer) {
+        if (answer.contains("ELM327")) {
+            logInfo("Adapter reset detected");
+            invalidateAdapterState();
+        }
+    }
+
+    /*
+     * Forgets the adapter settings, the next init sends everything again
+     */
+    private void invalidateAdapterState() {
+        mInitializedProtocol = null;
+        mAtStateInvalid = true;
+    }
+
+    /*
+     * Reports the number of queued messages once a message is processed,
+     * read afterwards since the pipelined mode takes several of them
+     */
+    private void postQueueState(){
+        int num_queue = mMessages.size() + (mDeferredMessage != null ? 1 : 0);
+        synchronized (this) {
+            if (mConnectionHandler != null) {
+                mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_QUEUE_STATE,
+                        num_queue, -1, null).sendToTarget();
+            }
+        }
+    }
+
     void setSessionActive(boolean active) {
         mSessionActive = active;
     }
 
+    /*
+     * Posts a result to the UI handler, it is recycled by the handler
+     * (or here if there is no handler anymore)
+     */
+    protected void postResult(ElmResult result){
+        synchronized (this) {
+            if (mConnectionHandler != null) {
+                mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_READ, result).sendToTarget();
+                return;
+            }
+        }
+        result.recycle();
+    }
+
+    /*
+     * Sets the response of a decoded (hexadecimal) ECU answer, or the error
+     */
+    private void setResultResponse(ElmResult elmResult, String result){
+        if (result.startsWith("ERROR") || (result.length() % 2) != 0 || !isHexadecimal(result))
+            elmResult.setError(result);
+        else
+            elmResult.setResponse(Ecu.hexStringToByteArray(result));
+    }
+
     protected void sendISO(String message){
+        ElmResult elmResult = ElmResult.obtain(message, System.currentTimeMillis());
         String messageResult = writeRaw(message);
+        checkAdapterReset(messageResult);
 
         // Parse response
         StringBuilder resultMess = new StringBuilder();
@@ -509,23 +706,17 @@ public abstract class ElmBase {
             logInfo("Log error : " + e.getMessage());
         }
 
-        result = message + ";" + result;
-
-        int result_length = result.length();
-        byte[] tmpbuf = new byte[result_length];
-        //Make copy for not to rewrite in other thread
-        System.arraycopy(result.getBytes(), 0, tmpbuf, 0, result_length);
-        synchronized (this) {
-            if (mConnectionHandler != null) {
-                mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_READ, result_length, -1, tmpbuf).sendToTarget();
-            }
-        }
+        countPoll();
+        setResultResponse(elmResult, result);
+        postResult(elmResult);
     }
 
     protected void sendCanCFC0(String message){
         if (!isHexadecimal(message))
             return;
 
+        long sentTime = System.currentTimeMillis();
+
         IsoTPEncode isotpm = new IsoTPEncode(message);
         // Encode ISO_TP data
         ArrayList<String> raw_command = isotpm.getFormattedArray();
@@ -541,20 +732,20 @@ public abstract class ElmBase {
 
         // Set ELM timeout to 300ms for first frame response
         if (Fn > 1 && raw_command.get(0).length() > 15){
-            writeRaw("ATST4B");
+            writeSetting("ATST4B");
         }
 
         while(Fc < Fn){
             String frsp;
             if (!ATR1){
-                writeRaw("ATR1");
+                writeSetting("ATR1");
                 ATR1 = true;
             }
             long tb = System.currentTimeMillis();
 
             if (Fn > 1 && Fc == (Fn - 1)){
-                writeRaw("ATSTFF");
-                writeRaw("ATAT1");
+                writeSetting("ATSTFF");
+                writeSetting("ATAT1");
             }
 
             String currentRawCommand = raw_command.get(Fc);
@@ -630,7 +821,7 @@ public abstract class ElmBase {
             int cf = min(BS - 1, (Fn - Fc) - 1);
 
             if (cf > 0){
-                writeRaw("ATR0");
+                writeSetting("ATR0");
                 ATR1 = false;
             }
 
@@ -721,7 +912,7 @@ public abstract class ElmBase {
         }
 
         if (!noerrors){
-            message = "ERROR : " + errorMsg;
+            result = new StringBuilder("ERROR : " + errorMsg);
         } else {
             // Decode received ISO_TP data
             IsoTPDecode isotpdec = new IsoTPDecode(responses);
@@ -738,19 +929,99 @@ public abstract class ElmBase {
             e.printStackTrace();
         }
 
-        result.insert(0, message + ";");
-        int result_length = result.length();
-        byte[] tmpbuf = new byte[result_length];
-        //Make copy for not to rewrite in other thread
-        System.arraycopy(result.toString().getBytes(), 0, tmpbuf, 0, result_length);
-        synchronized (this) {
-            if (mConnectionHandler != null) {
-                mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_READ, result_length, -1, tmpbuf).sendToTarget();
+        countPoll();
+        ElmResult elmResult = ElmResult.obtain(message, sentTime);
+        setResultResponse(elmResult, result.toString());
+        postResult(elmResult);
+    }
+
+    /*
+     * Single frame read request (21 / 22 services), the only ones pipelined :
+     * a request lost by the adapter may have reached the bus anyway
+     */
+    private boolean isPipelinedRead(String message){
+        int message_len = message.length();
+        return message_len >= 4 && message_len <= 14 && (message_len % 2) == 0
+                && (message.startsWith("21") || message.startsWith("22"))
+                && isHexadecimal(message);
+    }
+
+    /*
+     * Sends the following single frame requests of the queue without waiting
+     * for the responses, then reads the responses in order
+     */
+    protected void sendCanPipelined(String message){
+        ArrayList<String> messages = new ArrayList<>();
+        messages.add(message);
+        while (messages.size() < PIPELINE_DEPTH){
+            String next = mMessages.peek();
+            if (next == null || !isPipelinedRead(next))
+                break;
+            // Single consumer, poll() returns another message if the queue was
+            // cleared and written again meanwhile : it is kept for lockstep mode
+            next = mMessages.poll();
+            if (next == null)
+                break;
+            if (!isPipelinedRead(next)) {
+                mDeferredMessage = next;
+                break;
+            }
+            messages.add(next);
+        }
+
+        ArrayList<String> frames = new ArrayList<>();
+        long sentTime = System.currentTimeMillis();
+        for (String m : messages){
+            String frame = new IsoTPEncode(m).getFormattedArray().get(0);
+            frames.add(frame);
+            sendRaw(frame);
+        }
+
+        boolean failed = false;
+        for (int i = 0; i < messages.size(); ++i){
+            String frsp = failed ? null : readRaw(PIPELINE_READ_TIMEOUT);
+            if (!mRunningStatus)
+                return;
+
+            if (frsp == null || isPipelineError(frsp)){
+                failed = true;
+                ElmResult elmResult = ElmResult.obtain(messages.get(i), sentTime);
+                elmResult.setError("ERROR : " + (frsp == null ? "NO PROMPT" : frsp.trim())
+                        + " (pipelined)");
+                postResult(elmResult);
+                continue;
+            }
+
+            ArrayList<String> responses = new ArrayList<>();
+            StringBuilder errorMsg = new StringBuilder();
+            boolean error = parseCanResponse(frames.get(i), frsp, responses, errorMsg);
+            finishCan(messages.get(i), sentTime, responses, error, errorMsg);
+        }
+
+        if (failed){
+            mPipelineFallback = true;
+            // Swallow the prompts still to come so lockstep mode starts in sync
+            for (int i = 0; i < messages.size() && mRunningStatus; ++i){
+                if (readRaw(PIPELINE_DRAIN_TIMEOUT) == null)
+                    break;
             }
+            logInfo("Adapter does not support pipelining, switching to lockstep mode ("
+                    + String.format("%.1f", mPollsPerSecond) + " polls/s)");
+        }
+    }
+
+    private boolean isPipelineError(String response){
+        if (response.isEmpty() || response.contains("STOPPED") || response.contains("BUFFER FULL"))
+            return true;
+        for (String s : response.split("\n")){
+            if (s.trim().equals("?"))
+                return true;
         }
+        return false;
     }
 
     protected void sendCan(String message){
+        long sentTime = System.currentTimeMillis();
         IsoTPEncode isotpm = new IsoTPEncode(message);
         // Encode ISO_TP data
         ArrayList<String> raw_command = isotpm.getFormattedArray();
@@ -761,38 +1032,61 @@ public abstract class ElmBase {
         // Send data
         for (String frame: raw_command) {
             String frsp = writeRaw(frame);
+            if (parseCanResponse(frame, frsp, responses, errorMsg))
+                error = true;
+        }
 
-            for(String s: frsp.split("\n")){
-                // Remove unwanted characters
-                s = s.replace("\n", "");
-                // Echo cancellation
-                if (s.equals(frame))
-                    continue;
+        finishCan(message, sentTime, responses, error, errorMsg);
+    }
 
-                // Remove whitespaces
-                s = s.replace(" ", "");
-                if (s.length() == 0)
-                    continue;
+    /*
+     * Collects the CAN frames of an ELM response, returns true on error
+     */
+    private boolean parseCanResponse(String frame, String frsp, ArrayList<String> responses,
+                                     StringBuilder errorMsg){
+        boolean error = false;
+        for(String s: frsp.split("\n")){
+            // Remove unwanted characters
+            s = s.replace("\n", "");
+            // Echo cancellation
+            if (s.equals(frame))
+                continue;
 
-                if (isHexadecimal(s)){
-                    // Filter out frame control (FC) response
-                    if (s.charAt(0) == '3')
-                        continue;
-                    responses.add(s);
-                } else {
-                    errorMsg.append(frsp);
-                    error = true;
-                }
+            // Remove whitespaces
+            s = s.replace(" ", "");
+            if (s.length() == 0)
+                continue;
+
+            if (isHexadecimal(s)){
+                // Filter out frame control (FC) response
+                if (s.charAt(0) == '3')
+                    continue;
+                responses.add(s);
+            } else {
+                errorMsg.append(frsp);
+                error = true;
+                checkAdapterReset(frsp);
             }
         }
+        return error;
+    }
 
+    private void finishCan(String message, long sentTime, ArrayList<String> responses,
+                           boolean error, StringBuilder errorMsg){
+        ElmResult elmResult = ElmResult.obtain(message, sentTime);
         String result;
         if (error){
             result = "ERROR : " + errorMsg;
+            elmResult.setError(result);
         } else {
-            // Decode received ISO_TP data
-            IsoTPDecode isotpdec = new IsoTPDecode(responses);
-            result = isotpdec.decodeCan();
+            // Reassemble received ISO_TP data
+            result = new IsoTPDecode(responses, mReassembler).reassemble();
+            if (result != null) {
+                elmResult.setError(result);
+            } else {
+                elmResult.setResponse(mReassembler.toByteArray());
+                result = elmResult.getResponseHex();
+            }
         }
 
         try {
@@ -805,20 +1099,12 @@ public abstract class ElmBase {
             e.printStackTrace();
         }
 
-        result = message + ";" + result;
-        int result_length = result.length();
-        byte[] tmpbuf = new byte[result_length];
-        //Make copy for not to rewrite in other thread
-        System.arraycopy(result.getBytes(), 0, tmpbuf, 0, result_length);
-        synchronized (this) {
-            if (mConnectionHandler != null) {
-                mConnectionHandler.obtainMessage(ScreenActivity.MESSAGE_READ, result_length, -1, tmpbuf).sendToTarget();
-            }
-        }
+        countPoll();
+        postResult(elmResult);
     }
 
-    public synchronized void write(String out) {
-        mMessages.add(out);
+    public void write(String out) {
+        mMessages.offer(out);
     }
 
     public void setEcuName(String name){
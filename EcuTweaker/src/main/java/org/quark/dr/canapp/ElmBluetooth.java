@@ -116,8 +116,22 @@ public class ElmBluetooth extends ElmBase {
 
     @Override
     protected String writeRaw(String raw_buffer) {
-        raw_buffer += "\r";
-        return mConnectedThread.write(raw_buffer);
+        return mConnectedThread.write(encodeCommand(raw_buffer));
+    }
+
+    @Override
+    protected void sendRaw(String raw_buffer) {
+        mConnectedThread.writeToElm(encodeCommand(raw_buffer));
+    }
+
+    @Override
+    protected String readRaw(long timeout) {
+        return mConnectedThread.readFromElm(timeout);
+    }
+
+    @Override
+    protected boolean supportsPipelining(){
+        return true;
     }
 
     private void connectionFailed() {
@@ -215,6 +229,7 @@ public class ElmBluetooth extends ElmBase {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private final ElmPromptReader mPromptReader;
 
         public ConnectedThread(BluetoothSocket socket) {
             mMessages.clear();
@@ -232,6 +247,14 @@ public class ElmBluetooth extends ElmBase {
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            mPromptReader = new ElmPromptReader(new ElmPromptReader.Source() {
+                @Override
+                public int read(byte[] buffer, int offset, int length, long timeout) throws IOException {
+                    if (timeout > 0 && !ElmPromptReader.waitInput(mmInStream, timeout))
+                        return 0;
+                    return mmInStream.read(buffer, offset, length);
+                }
+            }, 0);
         }
 
         public void run() {
@@ -257,10 +280,15 @@ public class ElmBluetooth extends ElmBase {
             }
         }
 
-        private String write(String raw_buffer) {
-            byte[] reply_buffer = new byte[4096];
+        private String write(byte[] raw_buffer) {
+            if (!writeToElm(raw_buffer))
+                return "ERROR : DISCONNECTED";
+            return readFromElm();
+        }
+
+        private boolean writeToElm(byte[] raw_buffer) {
             try {
-                mmOutStream.write(raw_buffer.getBytes());
+                mmOutStream.write(raw_buffer);
             } catch (IOException e) {
                 connectionLost();
                 // Start the service over to restart listening mode
@@ -269,32 +297,31 @@ public class ElmBluetooth extends ElmBase {
                 } catch (IOException ioe){
 
                 }
-                return "ERROR : DISCONNECTED";
+                return false;
+            }
+            return true;
+        }
+
+        /*
+         * Pipelined read, null if no prompt came before timeout
+         */
+        private String readFromElm(long timeout) {
+            try {
+                return mPromptReader.readResponse(timeout);
+            } catch (ElmPromptReader.TimeoutException e) {
+                return null;
+            } catch (IOException e) {
+                connectionLost();
             }
+            return "ERROR : UNKNOWN";
+        }
 
+        private String readFromElm() {
             // Wait ELM response
-            int u = -1;
-            while (true) {
-                try {
-                    // Read from the InputStream
-                    u = u + 1;
-                    int bytes = mmInStream.read(reply_buffer, u, 1);
-                    if (bytes < 1) {
-                        --u;
-                        continue;
-                    }
-
-                    // Convert carriage return to line feed
-                    if (reply_buffer[u] == 0x0d)
-                        reply_buffer[u] = 0x0a;
-
-                    if (reply_buffer[u] == '>') { // End of communication
-                        return new String(reply_buffer, 0, u - 1);
-                    }
-                } catch (IOException e) {
-                    connectionLost();
-                    break;
-                }
+            try {
+                return mPromptReader.readResponse();
+            } catch (IOException e) {
+                connectionLost();
             }
             return "ERROR : UNKNOWN";
         }
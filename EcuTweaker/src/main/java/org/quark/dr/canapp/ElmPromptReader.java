@@ -0,0 +1,113 @@
+package org.quark.dr.canapp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/*
+ * ELM response reader shared by the transports
+ * Input is read in bulk into a reusable buffer and scanned for the '>' prompt,
+ * bytes received after a prompt are kept for the next response (pipelined mode)
+ * Carriage returns are converted to line feeds and the trailing line feeds
+ * before the prompt are removed
+ */
+public class ElmPromptReader {
+    public interface Source {
+        /*
+         * Reads up to length bytes, returns 0 if no data is available yet
+         * and -1 at end of stream
+         * timeout is the time left before the reader deadline (ms), 0 if there is none
+         */
+        int read(byte[] buffer, int offset, int length, long timeout) throws IOException;
+    }
+
+    public static class TimeoutException extends IOException {
+        public TimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_RESPONSE_LENGTH = 32768;
+    private static final long INPUT_POLL_PERIOD = 5;
+
+    private final Source mSource;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final StringBuilder mResponse = new StringBuilder(256);
+    private final long mTimeout;
+    private int mStart, mEnd;
+
+    /*
+     * timeout : maximum time to wait for a prompt in ms, 0 to wait forever
+     */
+    public ElmPromptReader(Source source, long timeout) {
+        mSource = source;
+        mTimeout = timeout;
+    }
+
+    public void clear() {
+        mStart = mEnd = 0;
+    }
+
+    public String readResponse() throws IOException {
+        return readResponse(mTimeout);
+    }
+
+    /*
+     * Reads the next response with its own timeout (ms, 0 to wait forever)
+     */
+    public String readResponse(long timeout) throws IOException {
+        mResponse.setLength(0);
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+
+        while (true) {
+            while (mStart < mEnd) {
+                byte b = mBuffer[mStart++];
+                if (b == '>')
+                    return finishResponse();
+                if (mResponse.length() >= MAX_RESPONSE_LENGTH)
+                    throw new IOException("ELM response overflow");
+                mResponse.append(b == 0x0d ? '\n' : (char) b);
+            }
+
+            // Buffer fully consumed, refill it from the start
+            mStart = mEnd = 0;
+            long timeLeft = 0;
+            if (timeout > 0) {
+                timeLeft = deadline - System.currentTimeMillis();
+                if (timeLeft <= 0)
+                    throw new TimeoutException("Timeout");
+            }
+            int count = mSource.read(mBuffer, 0, BUFFER_SIZE, timeLeft);
+            if (count < 0)
+                throw new EOFException("ELM stream closed");
+            mEnd = count;
+        }
+    }
+
+    /*
+     * Waits up to timeout ms for input on a stream without read timeout,
+     * returns false if none came
+     */
+    public static boolean waitInput(InputStream in, long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (in.available() == 0) {
+            if (System.currentTimeMillis() >= deadline)
+                return false;
+            try {
+                Thread.sleep(INPUT_POLL_PERIOD);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted");
+            }
+        }
+        return true;
+    }
+
+    private String finishResponse() {
+        int length = mResponse.length();
+        while (length > 0 && mResponse.charAt(length - 1) == '\n')
+            --length;
+        return mResponse.substring(0, length);
+    }
+}
@@ -0,0 +1,112 @@
+package org.quark.dr.canapp;
+
+import org.quark.dr.ecu.HexCodec;
+
+/*
+ * Result of a command processed by the ELM thread, posted to the UI handler
+ * Request and response are kept as bytes, the UI decodes them without any
+ * hexadecimal conversion
+ * Instances are pooled : obtain() on the ELM thread, recycle() once handled
+ */
+public class ElmResult {
+    public interface Listener {
+        void onElmResult(ElmResult result);
+    }
+
+    public static final int STATUS_OK = 0;
+    // Negative response (7F), the code is in nrc
+    public static final int STATUS_NEGATIVE = 1;
+    // ELM or transport error, the message is in text
+    public static final int STATUS_ERROR = 2;
+
+    private static final int MAX_POOL_SIZE = 16;
+    private static final Object mPoolLock = new Object();
+    private static ElmResult mPool;
+    private static int mPoolSize;
+    private ElmResult mNext;
+
+    // Command as queued (hexadecimal request or AT command)
+    public String command;
+    // Request bytes, null for AT and non hexadecimal commands
+    public byte[] request;
+    // Response bytes, null for AT commands and errors
+    public byte[] response;
+    // ELM answer to an AT command, or error message
+    public String text;
+    public int status;
+    public int nrc;
+    public long sentTime;
+    public long receivedTime;
+
+    public static ElmResult obtain(String command, long sentTime) {
+        ElmResult result = null;
+        synchronized (mPoolLock) {
+            if (mPool != null) {
+                result = mPool;
+                mPool = result.mNext;
+                result.mNext = null;
+                --mPoolSize;
+            }
+        }
+        if (result == null)
+            result = new ElmResult();
+        result.command = command;
+        result.request = isHexCommand(command) ? HexCodec.decode(command) : null;
+        result.sentTime = sentTime;
+        return result;
+    }
+
+    public void recycle() {
+        command = null;
+        request = null;
+        response = null;
+        text = null;
+        status = STATUS_OK;
+        nrc = 0;
+        sentTime = receivedTime = 0;
+        synchronized (mPoolLock) {
+            if (mPoolSize < MAX_POOL_SIZE) {
+                mNext = mPool;
+                mPool = this;
+                ++mPoolSize;
+            }
+        }
+    }
+
+    private static boolean isAtCommand(String command) {
+        return command.length() >= 2 && command.substring(0, 2).equalsIgnoreCase("AT");
+    }
+
+    private static boolean isHexCommand(String command) {
+        return !isAtCommand(command) && (command.length() % 2) == 0
+                && HexCodec.isHexadecimal(command);
+    }
+
+    public boolean isAtCommand() {
+        return isAtCommand(command);
+    }
+
+    public void setText(String answer) {
+        text = answer;
+        receivedTime = System.currentTimeMillis();
+    }
+
+    public void setResponse(byte[] bytes) {
+        response = bytes;
+        receivedTime = System.currentTimeMillis();
+        if (bytes.length >= 3 && (bytes[0] & 0xFF) == 0x7F) {
+            status = STATUS_NEGATIVE;
+            nrc = bytes[2] & 0xFF;
+        }
+    }
+
+    public void setError(String error) {
+        text = error;
+        status = STATUS_ERROR;
+        receivedTime = System.currentTimeMillis();
+    }
+
+    public String getResponseHex() {
+        return response == null ? "" : HexCodec.encode(response);
+    }
+}
@@ -0,0 +1,123 @@
+package org.quark.dr.canapp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Byte ring buffer between a reader thread draining the link and the ELM worker
+ * The worker is woken up when a '>' prompt arrives (or when the buffer gets half
+ * full), so the latency only depends on the link, not on a polling period
+ */
+public class ElmRingBuffer implements ElmPromptReader.Source {
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mPromptArrived = mLock.newCondition();
+    // Monotonic read and write counters, guarded by mLock
+    private long mHead, mTail;
+    private int mPrompts;
+    private boolean mClosed;
+    private String mError;
+
+    /*
+     * capacity is rounded up to a power of two
+     */
+    public ElmRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        mBuffer = new byte[size];
+        mMask = size - 1;
+    }
+
+    /*
+     * Called by the reader thread, data that does not fit is dropped and the
+     * buffer is closed with an error
+     */
+    public void write(byte[] data, int length) {
+        mLock.lock();
+        try {
+            if (mClosed)
+                return;
+            int free = mBuffer.length - (int) (mTail - mHead);
+            if (length > free) {
+                mClosed = true;
+                mError = "Buffer overflow";
+                mPromptArrived.signalAll();
+                return;
+            }
+            for (int i = 0; i < length; ++i) {
+                byte b = data[i];
+                mBuffer[(int) (mTail++ & mMask)] = b;
+                if (b == '>')
+                    ++mPrompts;
+            }
+            if (mPrompts > 0 || (mTail - mHead) >= mBuffer.length / 2)
+                mPromptArrived.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * Called by the reader thread when the link is lost or closed
+     */
+    public void close(String error) {
+        mLock.lock();
+        try {
+            mClosed = true;
+            mError = error;
+            mPromptArrived.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public void clear() {
+        mLock.lock();
+        try {
+            mHead = mTail;
+            mPrompts = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * Waits for a prompt (at most timeout ms, forever if timeout is 0),
+     * then copies the available bytes
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int length, long timeout) throws IOException {
+        mLock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (!mClosed && mPrompts == 0 && (mTail - mHead) < mBuffer.length / 2) {
+                if (timeout == 0) {
+                    mPromptArrived.await();
+                } else {
+                    if (nanos <= 0)
+                        break;
+                    nanos = mPromptArrived.awaitNanos(nanos);
+                }
+            }
+
+            int count = (int) Math.min(length, mTail - mHead);
+            if (count == 0 && mClosed)
+                throw new EOFException(mError != null ? mError : "Link closed");
+            for (int i = 0; i < count; ++i) {
+                byte b = mBuffer[(int) (mHead++ & mMask)];
+                if (b == '>')
+                    --mPrompts;
+                buffer[offset + i] = b;
+            }
+            return count;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted");
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -7,9 +7,11 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.os.Handler;
 
+import org.quark.dr.usbserial.driver.UsbReadEngine;
 import org.quark.dr.usbserial.driver.UsbSerialDriver;
 import org.quark.dr.usbserial.driver.UsbSerialPort;
 import org.quark.dr.usbserial.driver.UsbSerialProber;
+import org.quark.dr.usbserial.util.SerialInputOutputManager;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -96,6 +98,12 @@ public class ElmUsbSerial extends ElmBase {
         } catch (Exception e) {
             logInfo("USB : error setting port parameters : " + e.getMessage());
         }
+        try {
+            // Keep several transfers queued on the bulk-in endpoint
+            msPort.setAsyncReads(UsbReadEngine.DEFAULT_REQUEST_COUNT);
+        } catch (IOException e) {
+            logInfo("USB : asynchronous reads not available : " + e.getMessage());
+        }
         logInfo("USB : Interface successfully connected");
         // Launch thread
         mConnectedThread = new ConnectedThread(msPort);
@@ -129,8 +137,22 @@ public class ElmUsbSerial extends ElmBase {
 
     @Override
     protected String writeRaw(String raw_buffer) {
-        raw_buffer += "\r";
-        return mConnectedThread.write(raw_buffer.getBytes());
+        return mConnectedThread.write(encodeCommand(raw_buffer));
+    }
+
+    @Override
+    protected void sendRaw(String raw_buffer) {
+        mConnectedThread.writeToElm(encodeCommand(raw_buffer));
+    }
+
+    @Override
+    protected String readRaw(long timeout) {
+        return mConnectedThread.readFromElm(timeout);
+    }
+
+    @Override
+    protected boolean supportsPipelining(){
+        return true;
     }
 
     private void connectionLost(String message) {
@@ -147,13 +169,35 @@ public class ElmUsbSerial extends ElmBase {
      */
     private class ConnectedThread extends Thread {
         private final UsbSerialPort mUsbSerialPort;
+        private final ElmRingBuffer mRingBuffer;
+        private final ElmPromptReader mPromptReader;
+        private final SerialInputOutputManager mReaderManager;
 
         public ConnectedThread(UsbSerialPort usbSerialPort) {
             mUsbSerialPort = usbSerialPort;
+            mRingBuffer = new ElmRingBuffer(32768);
+            mPromptReader = new ElmPromptReader(mRingBuffer, 4000);
+            // Reader thread draining the port into the ring buffer
+            mReaderManager = new SerialInputOutputManager(usbSerialPort,
+                    new SerialInputOutputManager.Listener() {
+                @Override
+                public void onNewData(byte[] data) {
+                    mRingBuffer.write(data, data.length);
+                }
+
+                @Override
+                public void onRunError(Exception e) {
+                    mRingBuffer.close("USB read exception : " + e.getMessage());
+                }
+            });
         }
 
         public void run() {
+            Thread readerThread = new Thread(mReaderManager, "ElmUsbReader");
+            readerThread.start();
             connectedThreadMainLoop();
+            mReaderManager.stop();
+            mRingBuffer.close(null);
         }
 
         public String write(byte[] buffer) {
@@ -165,8 +209,7 @@ public class ElmUsbSerial extends ElmBase {
             try {
                 if(mUsbSerialPort != null)
                 {
-                    byte[] arrayOfBytes = buffer;
-                    mUsbSerialPort.write(arrayOfBytes, 500);
+                    mUsbSerialPort.write(buffer, 0, buffer.length, 500);
                 }
             } catch (Exception localIOException1) {
                 connectionLost("USBWRITE IO Exception : " +  localIOException1.getMessage());
@@ -178,65 +221,41 @@ public class ElmUsbSerial extends ElmBase {
             }
         }
 
-        public String readFromElm() {
-            StringBuilder final_res = new StringBuilder();
-            while (true) {
-                byte[] bytes = new byte[2048];
-                int bytes_count = 0;
-                long millis =System.currentTimeMillis();
-                if(mUsbSerialPort != null)
-                {
-                    try {
-                        bytes_count = mUsbSerialPort.read(bytes, 1500);
-                    } catch (IOException e){
-                        logInfo("USB read IO exception : " + e.getMessage());
-                        bytes_count = 0;
-                    } catch (NullPointerException pne){
-                        connectionLost("USB read exception (closing) : " + pne.getMessage());
-                        break;
-                    } catch (Exception e) {
-                        logInfo("USB read exception : " + e.getMessage());
-                    }
-
-                    if (bytes_count > 0){
-                        boolean eof = false;
-                        String res = new String(bytes, 0, bytes_count);
-                        res = res.substring(0, bytes_count);
-
-                        if(res.length() > 0) {
-                            // Only break when ELM has sent termination char
-                            if (res.charAt(res.length() - 1) == '>') {
-                                if (res.length() > 2)
-                                    res = res.substring(0, res.length() - 2);
-                                else
-                                    res = "";
-                                eof = true;
-                            }
-                            res = res.replaceAll("\r", "\n");
-                            final_res.append(res);
-                            if (eof)
-                                break;
-                        }
-                    } else {
-                        try {
-                            Thread.sleep(5);
-                        } catch (Exception e){
-
-                        }
-                    }
-                    if ((System.currentTimeMillis() - millis) > 4000){
-                        connectionLost("USB read : Timeout");
-                        break;
-                    }
+        /*
+         * Pipelined read, null if no prompt came before timeout
+         */
+        public String readFromElm(long timeout) {
+            if (mUsbSerialPort == null)
+                return "";
+            try {
+                return mPromptReader.readResponse(timeout);
+            } catch (ElmPromptReader.TimeoutException e) {
+                return null;
+            } catch (IOException e) {
+                if (mRunningStatus)
+                    connectionLost(e.getMessage());
+            }
+            return "";
+        }
 
-                }
+        public String readFromElm() {
+            if (mUsbSerialPort == null)
+                return "";
+            try {
+                return mPromptReader.readResponse();
+            } catch (ElmPromptReader.TimeoutException e) {
+                connectionLost("USB read : Timeout");
+            } catch (IOException e) {
+                if (mRunningStatus)
+                    connectionLost(e.getMessage());
             }
-            return final_res.toString();
+            return "";
         }
 
         public void cancel() {
             mRunningStatus = false;
             interrupt();
+            mReaderManager.stop();
 
             try {
                 mUsbSerialPort.close();
@@ -136,8 +136,22 @@ public class ElmWifi extends ElmBase{
 
     @Override
     protected String writeRaw(String raw_buffer) {
-        raw_buffer += "\r";
-        return mConnectedThread.write(raw_buffer.getBytes());
+        return mConnectedThread.write(encodeCommand(raw_buffer));
+    }
+
+    @Override
+    protected void sendRaw(String raw_buffer) {
+        mConnectedThread.writeToElm(encodeCommand(raw_buffer));
+    }
+
+    @Override
+    protected String readRaw(long timeout) {
+        return mConnectedThread.readFromElm(timeout);
+    }
+
+    @Override
+    protected boolean supportsPipelining(){
+        return true;
     }
 
 
@@ -150,6 +164,7 @@ public class ElmWifi extends ElmBase{
         private final Socket mmSocket;
         private final OutputStream mOutStream;
         private final InputStream mInStream;
+        private final ElmPromptReader mPromptReader;
 
         public ConnectedThread(Socket socket) {
             mmSocket = socket;
@@ -166,6 +181,15 @@ public class ElmWifi extends ElmBase{
 
             mInStream = tmpIn;
             mOutStream = tmpOut;
+            // Socket timeout (4s) applies to each read
+            mPromptReader = new ElmPromptReader(new ElmPromptReader.Source() {
+                @Override
+                public int read(byte[] buffer, int offset, int length, long timeout) throws IOException {
+                    if (timeout > 0 && !ElmPromptReader.waitInput(mInStream, timeout))
+                        return 0;
+                    return mInStream.read(buffer, offset, length);
+                }
+            }, 0);
         }
 
         public void run() {
@@ -194,38 +218,35 @@ public class ElmWifi extends ElmBase{
             }
         }
 
+        /*
+         * Pipelined read, null if no prompt came before timeout
+         */
+        public String readFromElm(long timeout) {
+            try {
+                return mPromptReader.readResponse(timeout);
+            } catch (ElmPromptReader.TimeoutException e) {
+                return null;
+            } catch (Exception e) {
+                try {
+                    mmSocket.close();
+                } catch (IOException ioe){
+
+                }
+                connectionLost(e.getMessage());
+            }
+            return "";
+        }
+
         public String readFromElm() {
-            while (true) {
+            try {
+                return mPromptReader.readResponse();
+            } catch (Exception e) {
                 try {
-                    if(mmSocket != null)
-                    {
-                        byte b;
-                        StringBuilder res = new StringBuilder();
-                        int charCount = 0;
-                        while ((char) (b = (byte) mInStream.read()) != '>') {
-                            if (++charCount > 32768){
-                                try {
-                                    mmSocket.close();
-                                } catch (IOException e){
-
-                                }
-                                connectionLost("WiFi Socket overflow");
-                                return "";
-                            }
-                            if (b == 0x0d)
-                                b = 0x0a;
-                            res.append((char) b);
-                        }
-                        return res.toString();
-                    }
+                    mmSocket.close();
+                } catch (IOException ioe){
 
-                } catch (IOException localIOException) {
-                    connectionLost(localIOException.getMessage());
-                    break;
-                } catch (Exception e) {
-                    connectionLost(e.getMessage());
-                    break;
                 }
+                connectionLost(e.getMessage());
             }
             return "";
         }
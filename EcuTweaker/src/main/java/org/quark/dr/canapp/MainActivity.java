@@ -53,6 +53,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -72,7 +73,8 @@ import static org.quark.dr.canapp.ScreenActivity.MESSAGE_STATE_CHANGE;
 import static org.quark.dr.canapp.ScreenActivity.MESSAGE_TOAST;
 import static org.quark.dr.canapp.ScreenActivity.TOAST;
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements ElmResult.Listener,
+        BusScanner.Listener {
     final static String TAG = "EcuTweaker";
     final static int PERMISSIONS_ACCESS_EXTERNAL_STORAGE = 0;
     final static int PERMISSIONS_ACCESS_COARSE_LOCATION = 1;
@@ -95,6 +97,7 @@ public class MainActivity extends AppCompatActivity {
     public static final String PREF_PROJECT = "project";
     public static final String PREF_LINK_MODE =  "BT";
     public static final String PREF_SOFTFLOW = "softFlowControl";
+    public static final String PREF_PIPELINE = "pipelinedRequests";
 
     public static String mLastLog;
     private EcuDatabase mEcuDatabase;
@@ -116,6 +119,7 @@ public class MainActivity extends AppCompatActivity {
     private int mLinkMode;
     private boolean mActivateBluetoothAsked;
     private ProgressDialog mScanProgressDialog;
+    private BusScanner mBusScanner;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -515,6 +519,8 @@ public class MainActivity extends AppCompatActivity {
             // Fast recovery, clear message queue to
             // avoid lags
             mObdDevice.clearMessages();
+            if (mBusScanner != null)
+                mBusScanner.cancel();
             stopProgressDialog();
         });
         mScanProgressDialog.show();
@@ -525,6 +531,8 @@ public class MainActivity extends AppCompatActivity {
             Toast.makeText(this, "No ELM connection", Toast.LENGTH_SHORT).show();
             return;
         }
+        if (mBusScanner != null)
+            mBusScanner.cancel();
         AlertDialog alertDialog = new AlertDialog.Builder(MainActivity.this).create();
         alertDialog.setTitle("SELECT BUS");
         alertDialog.setButton(AlertDialog.BUTTON_POSITIVE, "CAN",
@@ -539,9 +547,70 @@ public class MainActivity extends AppCompatActivity {
                     showWaitDialog();
                     scanBusKWP();
                 });
+
+        alertDialog.setButton(AlertDialog.BUTTON_NEGATIVE, "ALL CAN",
+                (dialog, which) -> scanAllCan());
         alertDialog.show();
     }
 
+    /*
+     * Identifies all the ECUs of the CAN bus, whatever the selected ECU type
+     */
+    void scanAllCan(){
+        if (!mEcuDatabase.isLoaded())
+            return;
+        mObdDevice.changeHandler(mHandler);
+        mBusScanner = new BusScanner(mObdDevice, mEcuDatabase, this);
+        int count = mBusScanner.start();
+        if (count == 0)
+            return;
+        showWaitDialog();
+        mLogView.append("Scanning " + count + " CAN addresses\n");
+    }
+
+    @Override
+    public void onEcuFound(BusScanner.Responder responder){
+        StringBuilder log = new StringBuilder();
+        log.append(getResources().getString(R.string.ECU_FOUND)).append(" ")
+                .append(responder.function).append(" (")
+                .append(Integer.toHexString(responder.addressId).toUpperCase()).append(")");
+        if (!responder.supplier.isEmpty()) {
+            log.append(" : ").append(getResources().getString(R.string.SUPPLIER_VERSION))
+                    .append(" ").append(responder.supplier).append(" ")
+                    .append(getResources().getString(R.string.VERSION)).append(" ")
+                    .append(responder.version);
+        }
+        for (EcuDatabase.EcuInfo ecuInfo : responder.ecuInfos)
+            log.append("\n  ").append(responder.exactMatch ?
+                    getResources().getString(R.string.ECU_MATCH) :
+                    getResources().getString(R.string.ECU_PART_MATCH))
+                    .append(" ").append(ecuInfo.ecuName);
+        mLogView.append(log.append("\n"));
+    }
+
+    @Override
+    public void onScanFinished(List<BusScanner.Responder> responders){
+        stopProgressDialog();
+        ArrayList<String> inventory = new ArrayList<>();
+        for (BusScanner.Responder responder : responders) {
+            StringBuilder line = new StringBuilder(responder.function);
+            if (responder.ecuInfos.isEmpty()) {
+                line.append(" : ?");
+            } else {
+                line.append(" : ").append(responder.ecuInfos.get(0).ecuName);
+                if (!responder.exactMatch)
+                    line.append(" (~)");
+            }
+            inventory.add(line.toString());
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("CAN BUS : " + responders.size() + " ECU");
+        builder.setItems(inventory.toArray(new String[0]), null);
+        builder.setPositiveButton(getResources().getString(R.string.OK), null);
+        builder.create().show();
+    }
+
     void scanBus(){
         if(!isChatConnected()){
             Toast.makeText(this, "No ELM connection", Toast.LENGTH_SHORT).show();
@@ -946,32 +1015,41 @@ public class MainActivity extends AppCompatActivity {
         dialog.show();
     }
 
-    private void handleElmResult(String elmMessage){
-        String[] results = elmMessage.split(";");
-        if (results.length < 2){
+    @Override
+    public void onElmResult(ElmResult result){
+        if (mBusScanner != null && mBusScanner.onElmResult(result)){
+            return;
+        }
+        if (result.isAtCommand()){
             return;
         }
-        if (results[1].isEmpty() || results[0].substring(0,2).equalsIgnoreCase("AT")){
+        if (result.status == ElmResult.STATUS_ERROR){
+            mLogView.append("> " + result.command + " : " + result.text + "\n");
+            return;
+        }
+
+        byte[] response = result.response;
+        if (response.length == 0){
             return;
         }
 
-        String ecuResponse = results[1].replace(" ", "");
-        mLogView.append("> " + results[0] + " : " + results[1] + "\n");
+        String ecuResponse = result.getResponseHex();
+        mLogView.append("> " + result.command + " : " + ecuResponse + "\n");
 
         /*
          * Old method auto identification
          */
-        if (ecuResponse.length() > 39 && ecuResponse.startsWith("6180")) {
+        if (response.length >= 20 && response[0] == 0x61 && (response[1] & 0xFF) == 0x80) {
             // We get our data, stop scanning
             mObdDevice.clearMessages();
             stopProgressDialog();
 
             // Search best ECU file
-            String supplier = new String(Ecu.hexStringToByteArray(ecuResponse.substring(16, 22)));
+            String supplier = new String(response, 8, 3);
             String soft_version = ecuResponse.substring(32, 36);
             String version = ecuResponse.substring(36, 40);
             String diag_version_string = ecuResponse.substring(14, 16);
-            int diag_version = Integer.parseInt(diag_version_string, 16);
+            int diag_version = response[7] & 0xFF;
             mViewDiagVersion.setText(diag_version_string);
             mViewSupplier.setText(supplier);
             mViewSoft.setText(version);
@@ -1010,7 +1088,7 @@ public class MainActivity extends AppCompatActivity {
         /*
          * New method auto identification
          */
-        if (ecuResponse.length() > 5) {
+        if (response.length >= 3 && response[0] == 0x62 && (response[1] & 0xFF) == 0xF1) {
             if (ecuResponse.startsWith("62F1A0")) {
                 mEcuIdentifierNew.diag_version = ecuResponse.substring(6);
                 mViewDiagVersion.setText(mEcuIdentifierNew.diag_version);
@@ -1075,15 +1153,16 @@ public class MainActivity extends AppCompatActivity {
                         case STATE_NONE:
                         case STATE_DISCONNECTED:
                             activity.setConnectionStatus(STATE_DISCONNECTED);
+                            if (activity.mBusScanner != null)
+                                activity.mBusScanner.cancel();
                             activity.stopProgressDialog();
                             break;
                     }
                     break;
                 case MESSAGE_READ:
-                    byte[] m = (byte[]) msg.obj;
-                    String readMessage = new String(m, 0, msg.arg1);
+                    ElmResult result = (ElmResult) msg.obj;
                     try {
-                        activity.handleElmResult(readMessage);
+                        activity.onElmResult(result);
                     } catch (Exception e){
                         AlertDialog.Builder dlgAlert  = new AlertDialog.Builder(activity);
                         dlgAlert.setMessage(e.getMessage());
@@ -1091,6 +1170,8 @@ public class MainActivity extends AppCompatActivity {
                         dlgAlert.setPositiveButton("OK", null);
                         dlgAlert.create().show();
                         activity.mLogView.append("Exception : " + e.getMessage() + "\n");
+                    } finally {
+                        result.recycle();
                     }
                     break;
                 case MESSAGE_DEVICE_NAME:
@@ -1105,7 +1186,11 @@ public class MainActivity extends AppCompatActivity {
                     break;
                 case MESSAGE_QUEUE_STATE:
                     int queue_len = msg.arg1;
-                    if (queue_len == 0){
+                    if (queue_len == 0 && activity.mBusScanner != null)
+                        activity.mBusScanner.onQueueEmpty();
+                    // The bus scan queues more requests as the ECUs answer
+                    if (queue_len == 0 && (activity.mBusScanner == null
+                            || !activity.mBusScanner.isRunning())){
                         activity.stopProgressDialog();
                     }
                     break;
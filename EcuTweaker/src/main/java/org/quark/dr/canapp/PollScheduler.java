@@ -0,0 +1,150 @@
+package org.quark.dr.canapp;
+
+import android.graphics.Rect;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Auto reload scheduler of the display requests
+ * Each request has its own period : it is polled as fast as possible while its
+ * response changes, the period doubles (up to MAX_PERIOD) each time the same
+ * response is read again. Requests whose displays are scrolled out of the
+ * screen are not polled at all.
+ * UI thread only
+ */
+public class PollScheduler {
+    private static final long FIRST_SLOW_PERIOD = 250;
+    private static final long MAX_PERIOD = 4000;
+    // A request without result after this delay is polled again
+    private static final long RESULT_TIMEOUT = 5000;
+    // Delay before checking again when all the displays are off-screen
+    private static final long HIDDEN_RECHECK_DELAY = 250;
+    private static final int MAX_BATCH = 8;
+
+    private static class Entry {
+        final String command;
+        final View[] views;
+        long period;
+        long nextPoll;
+        long sentTime;
+        boolean inFlight;
+        byte[] lastResponse;
+
+        Entry(String command, View[] views) {
+            this.command = command;
+            this.views = views;
+        }
+    }
+
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private final ArrayList<Entry> mOrder = new ArrayList<>();
+    private final Rect mRect = new Rect();
+
+    public void clear() {
+        mEntries.clear();
+        mOrder.clear();
+    }
+
+    /*
+     * command : sent bytes of the request, views : displays showing its values
+     */
+    public void addRequest(String command, List<View> views) {
+        Entry entry = mEntries.get(command);
+        if (entry != null) {
+            // Same bytes for another request name, merge the views
+            View[] merged = Arrays.copyOf(entry.views, entry.views.length + views.size());
+            for (int i = 0; i < views.size(); ++i)
+                merged[entry.views.length + i] = views.get(i);
+            mOrder.remove(entry);
+            views = Arrays.asList(merged);
+        }
+        entry = new Entry(command, views.toArray(new View[0]));
+        mEntries.put(command, entry);
+        mOrder.add(entry);
+    }
+
+    private boolean isOnScreen(Entry entry) {
+        for (View view : entry.views) {
+            // Not laid out yet, poll it anyway
+            if (view.getWidth() == 0 || view.getLocalVisibleRect(mRect))
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * Appends the due on-screen requests to commands, earliest first
+     * Returns 0 if some were added, otherwise the delay before the next one is due
+     */
+    public long collect(long now, List<String> commands) {
+        long nextDelay = Long.MAX_VALUE;
+        ArrayList<Entry> due = new ArrayList<>();
+        for (Entry entry : mOrder) {
+            if (entry.inFlight) {
+                if (now - entry.sentTime < RESULT_TIMEOUT)
+                    continue;
+                entry.inFlight = false;
+            }
+            if (!isOnScreen(entry)) {
+                nextDelay = Math.min(nextDelay, HIDDEN_RECHECK_DELAY);
+                continue;
+            }
+            if (entry.nextPoll > now) {
+                nextDelay = Math.min(nextDelay, entry.nextPoll - now);
+                continue;
+            }
+            due.add(entry);
+        }
+
+        if (due.isEmpty())
+            return nextDelay == Long.MAX_VALUE ? HIDDEN_RECHECK_DELAY : nextDelay;
+
+        while (!due.isEmpty() && commands.size() < MAX_BATCH) {
+            Entry first = due.get(0);
+            for (Entry entry : due) {
+                if (entry.nextPoll < first.nextPoll)
+                    first = entry;
+            }
+            due.remove(first);
+            first.inFlight = true;
+            first.sentTime = now;
+            commands.add(first.command);
+        }
+        return 0;
+    }
+
+    /*
+     * Adapts the period of the request from its response (null on error)
+     */
+    public void onResult(String command, byte[] response, long now) {
+        Entry entry = mEntries.get(command);
+        if (entry == null)
+            return;
+        // Results of a manual reload count from their reception
+        long sentTime = entry.inFlight ? entry.sentTime : now;
+        entry.inFlight = false;
+        if (response != null) {
+            if (Arrays.equals(response, entry.lastResponse))
+                entry.period = Math.min(Math.max(entry.period * 2, FIRST_SLOW_PERIOD), MAX_PERIOD);
+            else
+                entry.period = 0;
+            entry.lastResponse = response;
+        }
+        entry.nextPoll = sentTime + entry.period;
+    }
+
+    /*
+     * Makes every request due again (manual reload)
+     */
+    public void reset() {
+        for (Entry entry : mOrder) {
+            entry.period = 0;
+            entry.nextPoll = 0;
+            entry.inFlight = false;
+        }
+    }
+}
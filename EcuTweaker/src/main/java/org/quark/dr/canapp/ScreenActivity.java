@@ -6,7 +6,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Handler;
@@ -50,6 +49,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Set;
 
@@ -59,10 +59,11 @@ import static org.quark.dr.canapp.ElmBluetooth.STATE_DISCONNECTED;
 import static org.quark.dr.canapp.ElmBluetooth.STATE_NONE;
 import static org.quark.dr.canapp.MainActivity.PREF_FONT_SCALE;
 import static org.quark.dr.canapp.MainActivity.PREF_GLOBAL_SCALE;
+import static org.quark.dr.canapp.MainActivity.PREF_PIPELINE;
 import static org.quark.dr.canapp.MainActivity.PREF_SOFTFLOW;
-import static org.quark.dr.ecu.Ecu.hexStringToByteArray;
 
-public class ScreenActivity extends AppCompatActivity {
+public class ScreenActivity extends AppCompatActivity
+        implements ElmResult.Listener, ScreenUpdater.Listener {
     private static final String TAG = "org.quark.dr.ecutweaker";
     private ScrollView m_scrollView;
     private RelativeLayout m_layoutView;
@@ -88,6 +89,10 @@ public class ScreenActivity extends AppCompatActivity {
 
     private ElmBase mChatService = null;
     private Handler mHandler = null;
+    private ScreenUpdater mScreenUpdater = null;
+    private final PollScheduler mPollScheduler = new PollScheduler();
+    private final ArrayList<String> mPollCommands = new ArrayList<>();
+    private final Runnable mPollRunnable = this::pollDisplays;
 
     private int mCanTimeOut;
     private int mFontSizeOverride;
@@ -108,7 +113,7 @@ public class ScreenActivity extends AppCompatActivity {
     private String              mConnectedDeviceName = null;
     private float               mGlobalScale;
     private long                mLastSDSTime;
-    private boolean             mDemoMode, mSoftFlowControl;
+    private boolean             mDemoMode, mSoftFlowControl, mPipelining;
 
     public float convertToPixel(float val){
         return (val / 8.0f) * mGlobalScale;
@@ -126,6 +131,7 @@ public class ScreenActivity extends AppCompatActivity {
     }
 
     private void initialize(Bundle savedInstanceState) {
+        mScreenUpdater = new ScreenUpdater(this);
         mCanTimeOut = 0;
         //mDemoMode = true;
         mDemoMode = false;
@@ -139,6 +145,7 @@ public class ScreenActivity extends AppCompatActivity {
         mFontSizeOverride = defaultPrefs.getInt(PREF_FONT_SCALE, 100);
         mGlobalScale = Float.parseFloat(globalScalePref);
         mSoftFlowControl = defaultPrefs.getBoolean(PREF_SOFTFLOW, false);
+        mPipelining = defaultPrefs.getBoolean(PREF_PIPELINE, false);
 
         mLastSDSTime = 0;
         int linkMode = MainActivity.LINK_WIFI;
@@ -175,6 +182,17 @@ public class ScreenActivity extends AppCompatActivity {
             CheckBox softflowcheckbox = view.findViewById(R.id.checkBoxSFC);
             softflowcheckbox.setChecked(mSoftFlowControl);
             softflowcheckbox.setOnCheckedChangeListener((btn, b1) -> mSoftFlowControl = b1);
+            CheckBox pipelinecheckbox = view.findViewById(R.id.checkBoxPipeline);
+            pipelinecheckbox.setChecked(mPipelining);
+            pipelinecheckbox.setOnCheckedChangeListener((btn, b1) -> mPipelining = b1);
+            if (mChatService != null && mChatService.getPollsPerSecond() > 0) {
+                // Last measured poll rate, to compare both modes
+                TextView pipelineText = view.findViewById(R.id.textViewPipeline);
+                pipelineText.setText(String.format(Locale.US,
+                        "Pipelined requests (STN11xx) : %.1f polls/s, %s",
+                        mChatService.getPollsPerSecond(),
+                        mChatService.isPipelining() ? "pipelined" : "lockstep"));
+            }
             SeekBar canSeekBar = view.findViewById(R.id.canTimeoutSeekBar);
             canSeekBar.setProgress(mCanTimeOut);
             Spinner sdsSpinner = view.findViewById(R.id.sdsSpinner);
@@ -262,6 +280,7 @@ public class ScreenActivity extends AppCompatActivity {
             m_autoReload = !m_autoReload;
             if (m_autoReload){
                 m_reloadButton.setColorFilter(Color.GREEN);
+                mPollScheduler.reset();
             } else {
                 stopAutoReload();
             }
@@ -337,6 +356,7 @@ public class ScreenActivity extends AppCompatActivity {
         }
 
         mChatService.setSoftFlowControl(mSoftFlowControl);
+        mChatService.setPipelining(mPipelining);
 
         if (!ecuFile.isEmpty()){
             openEcu(ecuFile, ecuHref);
@@ -357,17 +377,22 @@ public class ScreenActivity extends AppCompatActivity {
         if(isChatConnected()){
             mChatService.setTimeOut(mCanTimeOut);
         }
+        if (mChatService != null)
+            mChatService.setPipelining(mPipelining);
         SharedPreferences defaultPrefs =
                 this.getSharedPreferences(MainActivity.DEFAULT_PREF_TAG, MODE_PRIVATE);
         SharedPreferences.Editor edit = defaultPrefs.edit();
         edit.putInt(PREF_FONT_SCALE, mFontSizeOverride);
         edit.putBoolean(PREF_SOFTFLOW, mSoftFlowControl);
+        edit.putBoolean(PREF_PIPELINE, mPipelining);
         edit.apply();
     }
 
     void stopAutoReload(){
         m_autoReload = false;
         m_reloadButton.clearColorFilter();
+        if (mHandler != null)
+            mHandler.removeCallbacks(mPollRunnable);
     }
 
     void openEcu(String ecuFile, String ecuName){
@@ -376,11 +401,9 @@ public class ScreenActivity extends AppCompatActivity {
         String appDir = getApplicationContext().getFilesDir().getAbsolutePath();
         try {
             m_ecuDatabase.loadDatabase(ecuFile, appDir);
-            String ecuJson = m_ecuDatabase.getZipFile(ecuName);
-            String layoutJson = m_ecuDatabase.getZipFile(layoutFileName);
 
-            m_ecu = new Ecu(ecuJson);
-            m_currentLayoutData = new Layout(layoutJson);
+            m_ecu = m_ecuDatabase.getEcu(ecuName);
+            m_currentLayoutData = m_ecuDatabase.getLayout(layoutFileName);
             m_currentEcuName = ecuName;
         } catch (EcuDatabase.DatabaseException e){
             e.printStackTrace();
@@ -408,6 +431,8 @@ public class ScreenActivity extends AppCompatActivity {
         m_requestsInputs = new HashMap<>();
         m_displaysRequestSet = new HashSet<>();
         m_startRequestSet =  new HashSet<>();
+        mPollScheduler.clear();
+        HashMap<String, ArrayList<View>> displayRequestViews = new HashMap<>();
 
         if (m_currentLayoutData == null)
             return;
@@ -440,17 +465,11 @@ public class ScreenActivity extends AppCompatActivity {
                 String filenameu = "graphics/" + gifName + ".GIF";
                 String filenamel = "graphics/" + gifName + ".gif";
 
-                byte[] imageBytes = null;
-                if (m_ecuDatabase.getZipFileSystem().fileExists(filenameu)){
-                    imageBytes = m_ecuDatabase.getZipFileSystem().getZipFileAsBytes(filenameu);
-                } else if (m_ecuDatabase.getZipFileSystem().fileExists(filenamel)){
-                    imageBytes = m_ecuDatabase.getZipFileSystem().getZipFileAsBytes(filenamel);
-                }
+                Bitmap bm = ZipImageCache.getSingleton().getBitmap(m_ecuDatabase.getZipFileSystem(),
+                        filenameu, filenamel);
 
-                if (imageBytes != null) {
+                if (bm != null) {
                     ImageView imageView = new ImageView(this);
-                    Bitmap bm = BitmapFactory.decodeByteArray(imageBytes, 0,
-                            imageBytes.length);
                     imageView.setX(convertToPixel(labelData.rect.x));
                     imageView.setY(convertToPixel(labelData.rect.y));
                     int w = (int) convertToPixel(labelData.rect.w);
@@ -514,6 +533,10 @@ public class ScreenActivity extends AppCompatActivity {
             m_displayViews.put(displaydata.text, textEdit);
             m_layoutView.addView(textEdit);
             m_displaysRequestSet.add(displaydata.request);
+            if (!displayRequestViews.containsKey(displaydata.request)){
+                displayRequestViews.put(displaydata.request, new ArrayList<>());
+            }
+            displayRequestViews.get(displaydata.request).add(textEdit);
         }
 
         for (Layout.InputData inputdata: m_currentScreenData.getInputs()){
@@ -586,19 +609,14 @@ public class ScreenActivity extends AppCompatActivity {
                 String filenameu = "graphics/" + gifName + ".GIF";
                 String filenamel = "graphics/" + gifName + ".gif";
 
-                byte[] imageBytes = null;
-                if (m_ecuDatabase.getZipFileSystem().fileExists(filenameu)) {
-                    imageBytes = m_ecuDatabase.getZipFileSystem().getZipFileAsBytes(filenameu);
-                } else if (m_ecuDatabase.getZipFileSystem().fileExists(filenamel)) {
-                    imageBytes = m_ecuDatabase.getZipFileSystem().getZipFileAsBytes(filenamel);
-                } else {
+                Bitmap bm = ZipImageCache.getSingleton().getBitmap(m_ecuDatabase.getZipFileSystem(),
+                        filenameu, filenamel);
+                if (bm == null) {
                     System.out.println("++ Not found " + filenameu);
                 }
 
-                if (imageBytes != null) {
+                if (bm != null) {
                     ImageButton buttonImageView = new ImageButton(this);
-                    Bitmap bm = BitmapFactory.decodeByteArray(imageBytes, 0,
-                            imageBytes.length);
                     buttonImageView.setX(convertToPixel(buttondata.rect.x));
                     buttonImageView.setY(convertToPixel(buttondata.rect.y));
                     int w = (int) convertToPixel(buttondata.rect.w);
@@ -632,6 +650,17 @@ public class ScreenActivity extends AppCompatActivity {
             }
         }
 
+        Set<String> globalRequestSet = new HashSet<>();
+        globalRequestSet.addAll(m_displaysRequestSet);
+        globalRequestSet.addAll(m_startRequestSet);
+        mScreenUpdater.setScreen(m_ecu, globalRequestSet, m_displayViews, m_editTextViews,
+                m_spinnerViews);
+        for (String requestname : m_displaysRequestSet){
+            Ecu.EcuRequest request = m_ecu.getRequest(requestname);
+            if (request != null)
+                mPollScheduler.addRequest(request.sentbytes, displayRequestViews.get(requestname));
+        }
+
         m_scrollView.requestLayout();
         updateDisplays();
         // test data
@@ -685,27 +714,54 @@ public class ScreenActivity extends AppCompatActivity {
         }
     }
 
-    private void updateScreen(String req, String response){
-        if (req.isEmpty() && response.isEmpty()) {
+    /*
+     * Auto reload cycle : only the due on-screen display requests are sent,
+     * see PollScheduler. The pre-send data are only sent by updateDisplays
+     */
+    private void pollDisplays(){
+        mHandler.removeCallbacks(mPollRunnable);
+        if (!m_autoReload || m_currentScreenData == null)
+            return;
+        if (!isChatConnected()) {
+            setConnectionStatus(STATE_DISCONNECTED);
             return;
         }
 
+        if (System.currentTimeMillis() - mLastSDSTime > 3000) {
+            sendCmd(m_ecu.getDefaultSDS());
+            mLastSDSTime = System.currentTimeMillis();
+        }
+        mChatService.setSessionActive(true);
+
+        mPollCommands.clear();
+        long delay = mPollScheduler.collect(System.currentTimeMillis(), mPollCommands);
+        for (String command : mPollCommands){
+            sendCmd(command);
+        }
+        if (mPollCommands.isEmpty()){
+            // Nothing due, wake up when the next request is
+            mHandler.postDelayed(mPollRunnable, delay);
+        }
+    }
+
+    private void updateScreen(ElmResult result){
+        String req = result.command;
+        byte[] response = result.response;
+
         if (!isChatConnected()){
             connectDevice();
         }
 
-        if (response.length() < 4){
+        if (response.length < 2){
             return;
         }
 
-        int responseHeader, requestHeader;
-        try {
-            responseHeader = Integer.parseInt(response.substring(0, 2), 16);
-            requestHeader = Integer.parseInt(req.substring(0, 2), 16);
-        } catch (Exception e){
-            m_logView.append("Cannot decode service ID of " + response + "/" + req + "\n");
+        if (result.request == null || result.request.length == 0){
+            m_logView.append("Cannot decode service ID of " + result.getResponseHex() + "/" + req + "\n");
             return;
         }
+        int responseHeader = response[0] & 0xFF;
+        int requestHeader = result.request[0] & 0xFF;
 
         // Check response is ok
         if (requestHeader + 0x40 != responseHeader) {
@@ -715,47 +771,14 @@ public class ScreenActivity extends AppCompatActivity {
             return;
         }
 
-        Set<String> globalRequestSet = new HashSet<>();
-        globalRequestSet.addAll(m_displaysRequestSet);
-        globalRequestSet.addAll(m_startRequestSet);
-
-        for (String requestname : globalRequestSet) {
-            Ecu.EcuRequest request = m_ecu.getRequest(requestname);
-            if (BuildConfig.DEBUG)
-                Log.i(TAG, "Managing request : " + requestname);
-            if (request == null) {
-                if (BuildConfig.DEBUG)
-                    Log.i(TAG, "Cannot find request " + requestname);
-                continue;
-            }
-
-            if (request.sentbytes.equals(req)) {
-                HashMap<String, Pair<String, String>> mapValues;
-                try {
-                    byte[] bytes = hexStringToByteArray(response);
-                    mapValues = m_ecu.getRequestValuesWithUnit(bytes, requestname);
-                } catch (Exception e) {
-                    m_logView.append("Cannot decode request " + requestname + "\n");
-                    m_logView.append("Exception : " + e + "\n");
-                    continue;
-                }
+        // Decoded in background, the views are updated on next frame
+        mScreenUpdater.post(req, response);
+    }
 
-                for (String key : mapValues.keySet()) {
-                    if (m_displayViews.containsKey(key)) {
-                        m_displayViews.get(key).setText(mapValues.get(key).first
-                                + " " + mapValues.get(key).second);
-                    }
-                    if (m_editTextViews.containsKey(key)) {
-                        m_editTextViews.get(key).setText(mapValues.get(key).first);
-                    }
-                    if (m_spinnerViews.containsKey(key)) {
-                        Spinner spinner = m_spinnerViews.get(key);
-                        spinner.setSelection(((CustomAdapter) spinner.getAdapter())
-                                .getPosition(mapValues.get(key).first));
-                    }
-                }
-            }
-        }
+    @Override
+    public void onDecodeError(String requestName, Exception e){
+        m_logView.append("Cannot decode request " + requestName + "\n");
+        m_logView.append("Exception : " + e + "\n");
     }
 
     private final View.OnClickListener buttonClickListener = new View.OnClickListener() {
@@ -896,9 +919,20 @@ public class ScreenActivity extends AppCompatActivity {
     {
         Log.e(TAG, "+ ON DESTROY +");
         stopAutoReload();
+        mScreenUpdater.release();
+        if (m_ecuDatabase != null && m_ecuDatabase.isLoaded())
+            m_ecuDatabase.getZipFileSystem().close();
+        ZipImageCache.getSingleton().logStatistics();
         super.onDestroy();
     }
 
+    @Override
+    public void onLowMemory()
+    {
+        ZipImageCache.getSingleton().clear();
+        super.onLowMemory();
+    }
+
     @Override
     public void onStop()
     {
@@ -1049,35 +1083,44 @@ public class ScreenActivity extends AppCompatActivity {
             }
         }
         if (isQueueEmpty && m_autoReload){
-            updateDisplays();
+            pollDisplays();
         }
     }
 
-    void handleElmResult(String result){
-        String[] results = result.split(";");
-        if (results.length < 2 || results[0] == null || results[1] == null){
-            m_logView.append(getResources().getString(R.string.NO_ELM_RESPONSE) + " (" + result + ")\n");
+    @Override
+    public void onElmResult(ElmResult result){
+        if (result.isAtCommand()){
+            // Don't worry about ELM configuration
             return;
         }
 
-        String requestCode = results[0];
-        String replyCode = results[1];
+        String requestCode = result.command;
+        mPollScheduler.onResult(requestCode,
+                result.status == ElmResult.STATUS_OK ? result.response : null,
+                System.currentTimeMillis());
 
-        if (requestCode.length() >= 2 && requestCode.substring(0,2).equalsIgnoreCase("AT")){
-            // Don't worry about ELM configuration
+        if (result.status == ElmResult.STATUS_ERROR){
+            m_logView.append(getResources().getString(R.string.BAD_RESPONSE) + " : "+ result.text +
+                    " " +getResources().getString(R.string.TO_REQUEST)+ " '" + requestCode + "'\n");
             return;
         }
 
-        if (requestCode.length() >= 2 && requestCode.startsWith("14")){
-            if (replyCode.length() >= 2 && replyCode.startsWith("54")){
+        byte[] reply = result.response;
+        if (reply.length == 0){
+            m_logView.append(getResources().getString(R.string.NO_ELM_RESPONSE) + " (" + requestCode + ")\n");
+            return;
+        }
+
+        if (result.request != null && result.request.length > 0 && result.request[0] == 0x14){
+            if ((reply[0] & 0xFF) == 0x54){
                 m_logView.append(getResources().getString(R.string.DTC_CLEAR_OK) + "\n");
                 return;
             }
         }
 
-        if (replyCode.length() >= 6 && replyCode.startsWith("7F")) {
-            String resultCode = replyCode.substring(0, 6).toUpperCase();
-            String nrcode = resultCode.substring(4, 6);
+        if (result.status == ElmResult.STATUS_NEGATIVE) {
+            String nrcode = String.format("%02X", result.nrc);
+            String resultCode = String.format("7F%02X%02X", reply[1] & 0xFF, result.nrc);
             String translatedErrorCode = mChatService.getEcuErrorCode(nrcode);
             if (translatedErrorCode != null){
                 m_logView.append(getResources().getString(R.string.NEGATIVE_RESPONSE) +
@@ -1090,23 +1133,17 @@ public class ScreenActivity extends AppCompatActivity {
             }
         } else {
             m_logView.append(getResources().getString(R.string.ELM_RESPONSE) +
-                    " : " + replyCode + " " + getResources().getString(R.string.TO_REQUEST) +
+                    " : " + result.getResponseHex() + " " + getResources().getString(R.string.TO_REQUEST) +
                     " " + requestCode + "\n");
         }
 
-        if (replyCode.length() >= 5 && replyCode.startsWith("ERROR")){
-            m_logView.append(getResources().getString(R.string.BAD_RESPONSE) + " : "+ replyCode +
-                    " " +getResources().getString(R.string.TO_REQUEST)+ " '" + requestCode + "'\n");
-            return;
-        }
-
         if (requestCode.equals(m_currentDtcRequestBytes)){
-            decodeDTC(replyCode);
+            decodeDTC(reply);
             m_currentDtcRequestBytes = "";
             return;
         }
 
-        updateScreen(requestCode, replyCode);
+        updateScreen(result);
     }
 
     void readDTC(){
@@ -1161,9 +1198,9 @@ public class ScreenActivity extends AppCompatActivity {
 
     }
 
-    void decodeDTC(String response){
+    void decodeDTC(byte[] response){
         // Test data ACU4
-        // response = "57 06 90 07 41 90 08 41 90 42 52 90 08 42 90 07 42 90 7C 40".replace(" ", "");
+        // response = hexStringToByteArray("57 06 90 07 41 90 08 41 90 42 52 90 08 42 90 07 42 90 7C 40");
         List<List<String>> decodedDtcs = m_ecu.decodeDTC(m_currentDtcRequestName, response);
 
         if (decodedDtcs.size() == 0){
@@ -1218,12 +1255,13 @@ public class ScreenActivity extends AppCompatActivity {
                     }
                     break;
                 case MESSAGE_READ:
+                    ElmResult result = (ElmResult) msg.obj;
                     try {
-                        byte[] m = (byte[]) msg.obj;
-                        String readMessage = new String(m, 0, msg.arg1);
-                        activity.handleElmResult(readMessage);
+                        activity.onElmResult(result);
                     } catch (Exception e) {
                         activity.m_logView.append("Java exception : " + e + "\n");
+                    } finally {
+                        result.recycle();
                     }
                     break;
                 case MESSAGE_DEVICE_NAME:
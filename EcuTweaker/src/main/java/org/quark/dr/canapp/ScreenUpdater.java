@@ -0,0 +1,247 @@
+package org.quark.dr.canapp;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Choreographer;
+import android.widget.EditText;
+import android.widget.Spinner;
+
+import org.quark.dr.ecu.Ecu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Live data stage between the ELM results and the screen views
+ * Responses are decoded on a background thread, only the latest value of
+ * each data item is kept and the changed values are applied to the views
+ * once per frame (Choreographer), whatever the polling rate is
+ */
+public class ScreenUpdater implements Choreographer.FrameCallback {
+    public interface Listener {
+        // Called on the UI thread
+        void onDecodeError(String requestName, Exception e);
+    }
+
+    /*
+     * Decode slot of a request and the views showing it
+     */
+    private static class Binding {
+        final int slot;
+        final String unit;
+        EditText displayView;
+        EditText editText;
+        Spinner spinner;
+        // Guarded by mLock
+        String pendingValue;
+        boolean dirty;
+        // UI thread only
+        String frameValue;
+        String appliedText;
+
+        Binding(int slot, String unit) {
+            this.slot = slot;
+            this.unit = unit;
+        }
+    }
+
+    /*
+     * Request of the screen with its bound slots, requests sharing the same
+     * sent bytes are chained
+     */
+    private static class RequestDispatch {
+        final Ecu.EcuRequest request;
+        final Ecu.DecodePlan plan;
+        final Binding[] bindings;
+        RequestDispatch next;
+
+        RequestDispatch(Ecu.EcuRequest request, Binding[] bindings) {
+            this.request = request;
+            this.plan = request.getDecodePlan();
+            this.bindings = bindings;
+        }
+    }
+
+    /*
+     * Dispatch table of a screen (sent bytes -> request -> bindings),
+     * replaced as a whole by setScreen
+     */
+    private static class Screen {
+        final HashMap<String, RequestDispatch> dispatch = new HashMap<>();
+    }
+
+    private final Listener mListener;
+    private final Handler mUiHandler;
+    private final HandlerThread mDecoderThread;
+    private final Handler mDecoderHandler;
+    private final Choreographer mChoreographer;
+
+    private final Object mLock = new Object();
+    // Written under mLock, read without lock when posting
+    private volatile Screen mScreen;
+    // Guarded by mLock
+    private ArrayList<Binding> mDirtyBindings = new ArrayList<>();
+    private ArrayList<Binding> mFrameBindings = new ArrayList<>();
+    private boolean mFrameScheduled;
+
+    /*
+     * Must be created on the UI thread
+     */
+    public ScreenUpdater(Listener listener) {
+        mListener = listener;
+        mUiHandler = new Handler();
+        mChoreographer = Choreographer.getInstance();
+        mDecoderThread = new HandlerThread("ScreenDecoder");
+        mDecoderThread.start();
+        mDecoderHandler = new Handler(mDecoderThread.getLooper());
+    }
+
+    /*
+     * Builds the dispatch table of a new screen, slots without any view are
+     * not decoded
+     */
+    public void setScreen(Ecu ecu, Iterable<String> requestNames,
+                          HashMap<String, EditText> displayViews,
+                          HashMap<String, EditText> editTextViews,
+                          HashMap<String, Spinner> spinnerViews) {
+        Screen screen = new Screen();
+        for (String requestName : requestNames) {
+            Ecu.EcuRequest request = ecu.getRequest(requestName);
+            if (request == null || request.sentbytes == null)
+                continue;
+
+            Ecu.DecodePlan plan = request.getDecodePlan();
+            ArrayList<Binding> bindings = new ArrayList<>();
+            for (int slot = 0; slot < plan.size(); ++slot) {
+                String name = plan.getName(slot);
+                Binding binding = new Binding(slot, plan.getUnit(slot));
+                binding.displayView = displayViews.get(name);
+                binding.editText = editTextViews.get(name);
+                binding.spinner = spinnerViews.get(name);
+                if (binding.displayView != null || binding.editText != null
+                        || binding.spinner != null)
+                    bindings.add(binding);
+            }
+            if (bindings.isEmpty())
+                continue;
+
+            RequestDispatch dispatch = new RequestDispatch(request,
+                    bindings.toArray(new Binding[0]));
+            dispatch.next = screen.dispatch.get(request.sentbytes);
+            screen.dispatch.put(request.sentbytes, dispatch);
+        }
+
+        synchronized (mLock) {
+            mScreen = screen;
+            mDirtyBindings.clear();
+        }
+    }
+
+    /*
+     * Queues the response of a request for decoding, callable from any thread
+     */
+    public void post(String command, final byte[] response) {
+        final Screen screen = mScreen;
+        if (screen == null)
+            return;
+        final RequestDispatch dispatch = screen.dispatch.get(command);
+        if (dispatch == null)
+            return;
+        mDecoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (RequestDispatch d = dispatch; d != null; d = d.next)
+                    decode(screen, d, response);
+            }
+        });
+    }
+
+    /*
+     * Responses queued before setScreen belong to the replaced screen, their
+     * bindings are no longer displayed and are dropped
+     */
+    private void decode(Screen screen, final RequestDispatch dispatch, byte[] response) {
+        if (screen != mScreen)
+            return;
+        Binding[] bindings = dispatch.bindings;
+        String[] values = new String[bindings.length];
+        try {
+            for (int i = 0; i < bindings.length; ++i)
+                values[i] = dispatch.plan.getDisplayValue(response, bindings[i].slot);
+        } catch (final Exception e) {
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onDecodeError(dispatch.request.name, e);
+                }
+            });
+            return;
+        }
+
+        synchronized (mLock) {
+            if (screen != mScreen)
+                return;
+            for (int i = 0; i < bindings.length; ++i) {
+                Binding binding = bindings[i];
+                binding.pendingValue = values[i];
+                if (!binding.dirty) {
+                    binding.dirty = true;
+                    mDirtyBindings.add(binding);
+                }
+            }
+            if (!mFrameScheduled) {
+                mFrameScheduled = true;
+                // Choreographer forwards the request to its looper thread
+                mChoreographer.postFrameCallback(this);
+            }
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        ArrayList<Binding> bindings;
+        synchronized (mLock) {
+            mFrameScheduled = false;
+            // Swap the lists, the decoder keeps filling the other one
+            bindings = mDirtyBindings;
+            mDirtyBindings = mFrameBindings;
+            mFrameBindings = bindings;
+            for (int i = 0; i < bindings.size(); ++i) {
+                Binding binding = bindings.get(i);
+                binding.frameValue = binding.pendingValue;
+                binding.dirty = false;
+            }
+        }
+
+        for (int i = 0; i < bindings.size(); ++i) {
+            Binding binding = bindings.get(i);
+            String value = binding.frameValue;
+            if (binding.displayView != null) {
+                String text = value + " " + binding.unit;
+                if (!text.equals(binding.appliedText)) {
+                    binding.appliedText = text;
+                    binding.displayView.setText(text);
+                }
+            }
+            // Inputs may have been edited by the user, they always get the value read
+            if (binding.editText != null)
+                binding.editText.setText(value);
+            if (binding.spinner != null)
+                binding.spinner.setSelection(((CustomAdapter) binding.spinner.getAdapter())
+                        .getPosition(value));
+        }
+        bindings.clear();
+    }
+
+    /*
+     * Stops the decoder thread, the updater cannot be used anymore
+     */
+    public void release() {
+        synchronized (mLock) {
+            mScreen = null;
+            mDirtyBindings.clear();
+        }
+        mChoreographer.removeFrameCallback(this);
+        mDecoderThread.quit();
+    }
+}
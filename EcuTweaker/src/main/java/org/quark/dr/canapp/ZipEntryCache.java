@@ -0,0 +1,73 @@
+package org.quark.dr.canapp;
+
+import android.util.LruCache;
+
+import org.quark.dr.ecu.ZipFileSystem;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+
+/*
+ * Size bounded LRU cache of values loaded from the entries of one archive
+ * The archive is checked when another ZipFileSystem is used (database
+ * reloaded) : the values are flushed if its path, date or size changed,
+ * so an ecu.zip updated in place does not serve stale values
+ */
+abstract class ZipEntryCache<V> {
+    private final LruCache<String, V> mCache;
+    private WeakReference<ZipFileSystem> mZipFileSystem = new WeakReference<>(null);
+    private String mZipFilePath;
+    private long mZipTimeStamp, mZipLength;
+
+    ZipEntryCache(int maxSize) {
+        mCache = new LruCache<String, V>(maxSize) {
+            @Override
+            protected int sizeOf(String key, V value) {
+                return ZipEntryCache.this.sizeOf(value);
+            }
+        };
+    }
+
+    protected abstract int sizeOf(V value);
+
+    /*
+     * Loads the value of an entry, null if it cannot be read
+     */
+    protected abstract V load(ZipFileSystem zipFileSystem, String filename);
+
+    private synchronized void checkArchive(ZipFileSystem zipFileSystem) {
+        if (mZipFileSystem.get() == zipFileSystem)
+            return;
+        mZipFileSystem = new WeakReference<>(zipFileSystem);
+        String zipFilePath = zipFileSystem.getZipFilePath();
+        File zipFile = new File(zipFilePath);
+        long timeStamp = zipFile.lastModified();
+        long length = zipFile.length();
+        if (!zipFilePath.equals(mZipFilePath) || timeStamp != mZipTimeStamp
+                || length != mZipLength) {
+            mCache.evictAll();
+            mZipFilePath = zipFilePath;
+            mZipTimeStamp = timeStamp;
+            mZipLength = length;
+        }
+    }
+
+    V get(ZipFileSystem zipFileSystem, String filename) {
+        checkArchive(zipFileSystem);
+        V value = mCache.get(filename);
+        if (value == null) {
+            value = load(zipFileSystem, filename);
+            if (value != null)
+                mCache.put(filename, value);
+        }
+        return value;
+    }
+
+    void clear() {
+        mCache.evictAll();
+    }
+
+    LruCache<String, V> getLruCache() {
+        return mCache;
+    }
+}
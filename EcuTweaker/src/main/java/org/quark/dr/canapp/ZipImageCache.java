@@ -0,0 +1,83 @@
+package org.quark.dr.canapp;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import org.quark.dr.ecu.ZipFileSystem;
+
+/*
+ * LRU cache between the zip file system and the screens : decoded images
+ * are bounded by their bitmap allocation size, the raw bytes are not kept.
+ * The cache survives the activity so going back to a recently visited
+ * screen does not inflate nor decode its images again.
+ */
+public class ZipImageCache {
+    private static final String TAG = "org.quark.dr.ecutweaker";
+    private static ZipImageCache mSingleton = null;
+
+    private final ZipEntryCache<Bitmap> mBitmapCache;
+
+    static public synchronized ZipImageCache getSingleton() {
+        if (mSingleton == null) {
+            long maxMemory = Runtime.getRuntime().maxMemory();
+            mSingleton = new ZipImageCache((int) Math.min(maxMemory / 8, 32 * 1024 * 1024));
+        }
+        return mSingleton;
+    }
+
+    public ZipImageCache(int maxBitmapBytes) {
+        mBitmapCache = new ZipEntryCache<Bitmap>(maxBitmapBytes) {
+            @Override
+            protected int sizeOf(Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected Bitmap load(ZipFileSystem zipFileSystem, String filename) {
+                byte[] imageBytes = zipFileSystem.getZipFileAsBytes(filename);
+                if (imageBytes == null)
+                    return null;
+                return BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
+            }
+        };
+    }
+
+    /*
+     * Returns the image stored in the first readable entry, or null
+     */
+    public Bitmap getBitmap(ZipFileSystem zipFileSystem, String... filenames) {
+        for (String filename : filenames) {
+            if (!zipFileSystem.fileExists(filename))
+                continue;
+            Bitmap bitmap = mBitmapCache.get(zipFileSystem, filename);
+            if (bitmap != null)
+                return bitmap;
+        }
+        return null;
+    }
+
+    public void clear() {
+        mBitmapCache.clear();
+    }
+
+    public int getBitmapHitCount() {
+        return mBitmapCache.getLruCache().hitCount();
+    }
+
+    public int getBitmapMissCount() {
+        return mBitmapCache.getLruCache().missCount();
+    }
+
+    public int getBitmapEvictionCount() {
+        return mBitmapCache.getLruCache().evictionCount();
+    }
+
+    public void logStatistics() {
+        LruCache<String, Bitmap> cache = mBitmapCache.getLruCache();
+        Log.i(TAG, "Image cache : bitmaps " + cache.toString()
+                + " (" + cache.size() + "/" + cache.maxSize() + " bytes, "
+                + cache.evictionCount() + " evictions)");
+    }
+}
@@ -2,11 +2,28 @@ package org.quark.dr.ecu;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.*;
@@ -55,6 +72,744 @@ public class ecuUnitTest {
 
     }
 
+    /*
+     * Former binary string based implementation of EcuData.getHexValue,
+     * kept here as a reference for the bit level decoder
+     */
+    private static String legacyHexValue(byte[] resp, int sb, int startBit, int bitscount, boolean little_endian){
+        int dataBytesLen = (int)(Math.ceil((float)bitscount / 8.0f));
+        int requiredDataBytesLen = (int)(Math.ceil(((float)bitscount + (float)startBit) / 8.0f));
+        String hexToBin = "";
+
+        if (little_endian){
+            int bitlength = requiredDataBytesLen * 8;
+            for (int i = 0; i < requiredDataBytesLen; ++i){
+                hexToBin = Ecu.byteToBinaryString(resp[i+sb], 8) + hexToBin;
+            }
+            hexToBin = hexToBin.substring(bitlength - startBit - bitscount, bitlength - startBit);
+        } else {
+            for (int i = 0; i < requiredDataBytesLen; ++i){
+                hexToBin += Ecu.byteToBinaryString(resp[i+sb], 8);
+            }
+            hexToBin = hexToBin.substring(startBit, startBit + bitscount);
+        }
+        return Ecu.padLeft(new BigInteger(hexToBin, 2).toString(16), dataBytesLen * 2, "0");
+    }
+
+    @Test
+    public void test_extract_bits_equivalence(){
+        Random random = new Random(1234);
+        for (int n = 0; n < 20000; ++n){
+            int bitscount = 1 + random.nextInt(n % 4 == 0 ? 128 : 64);
+            int bitoffset = random.nextInt(n % 8 == 0 ? 24 : 8);
+            int firstbyte = random.nextInt(4);
+            boolean little_endian = random.nextBoolean();
+            byte[] frame = new byte[firstbyte + (bitoffset + bitscount + 7) / 8 + random.nextInt(3)];
+            random.nextBytes(frame);
+
+            String expected = legacyHexValue(frame, firstbyte, bitoffset, bitscount, little_endian);
+            assertThat(Ecu.extractHex(frame, firstbyte, bitoffset, bitscount, little_endian), is(expected));
+            assertThat(Ecu.extractBytes(frame, firstbyte, bitoffset, bitscount, little_endian),
+                    is(Ecu.hexStringToByteArray(expected)));
+            if (bitscount <= 64){
+                assertThat(Ecu.extractBits(frame, firstbyte, bitoffset, bitscount, little_endian),
+                        is(new BigInteger(expected, 16).longValue()));
+            }
+        }
+    }
+
+    @Test
+    public void test_extract_bits(){
+        byte[] frame = Ecu.hexStringToByteArray("61A1F00F8001");
+        assertThat(Ecu.extractBits(frame, 2, 0, 4, false), is(0xFL));
+        assertThat(Ecu.extractBits(frame, 2, 4, 8, false), is(0x00L));
+        assertThat(Ecu.extractBits(frame, 2, 0, 16, false), is(0xF00FL));
+        assertThat(Ecu.extractBits(frame, 2, 0, 16, true), is(0x0FF0L));
+        assertThat(Ecu.extractBits(frame, 4, 1, 8, true), is(0xC0L));
+        assertThat(Ecu.extractBits(frame, 4, 0, 1, false), is(1L));
+        assertThat(Ecu.extractHex(frame, 0, 0, 48, false), is("61a1f00f8001"));
+        assertThat(Ecu.longToHex(0xABL, 2), is("00ab"));
+    }
+
+    @Test
+    public void test_insert_bits_round_trip(){
+        Random random = new Random(4321);
+        for (int n = 0; n < 20000; ++n){
+            int bitscount = 1 + random.nextInt(n % 4 == 0 ? 128 : 64);
+            int bitoffset = random.nextInt(n % 8 == 0 ? 24 : 8);
+            int firstbyte = random.nextInt(4);
+            boolean little_endian = random.nextBoolean();
+            byte[] frame = new byte[firstbyte + (bitoffset + bitscount + 7) / 8 + random.nextInt(3)];
+            random.nextBytes(frame);
+            byte[] original = frame.clone();
+
+            byte[] value = new byte[(bitscount + 7) / 8];
+            random.nextBytes(value);
+            if (bitscount % 8 != 0)
+                value[0] &= (1 << (bitscount % 8)) - 1;
+
+            if (bitscount <= 64){
+                long longValue = new BigInteger(1, value).longValue();
+                Ecu.insertBits(frame, firstbyte, bitoffset, bitscount, little_endian, longValue);
+                assertThat(Ecu.extractBits(frame, firstbyte, bitoffset, bitscount, little_endian), is(longValue));
+            } else {
+                Ecu.insertBytes(frame, firstbyte, bitoffset, bitscount, little_endian, value);
+            }
+            assertThat(legacyHexValue(frame, firstbyte, bitoffset, bitscount, little_endian),
+                    is(Ecu.byteArrayToHex(value).toLowerCase()));
+
+            // Bits outside of the data item must not be modified
+            byte[] restored = frame.clone();
+            Ecu.insertBytes(restored, firstbyte, bitoffset, bitscount, little_endian,
+                    Ecu.extractBytes(original, firstbyte, bitoffset, bitscount, little_endian));
+            assertThat(restored, is(original));
+        }
+    }
+
+    private static Ecu buildSingleItemEcu(int firstbyte, int bitoffset, String endian, String dataDefinition){
+        String dataitem = "{\"firstbyte\":" + firstbyte + ",\"bitoffset\":" + bitoffset + ",\"endian\":\"" + endian + "\"}";
+        String json = "{\"endian\":\"Big\",\"ecuname\":\"test\",\"devices\":[],"
+                + "\"requests\":[{\"name\":\"Write\",\"sentbytes\":\"2E0000000000000000000000000000000000\","
+                + "\"sendbyte_dataitems\":{\"Item\":" + dataitem + "},"
+                + "\"receivebyte_dataitems\":{\"Item\":" + dataitem + "}}],"
+                + "\"data\":{\"Item\":" + dataDefinition + "}}";
+        return new Ecu(json);
+    }
+
+    @Test
+    public void test_ecu_set_value_round_trip(){
+        Random random = new Random(42);
+        for (int n = 0; n < 500; ++n){
+            int bitscount = 1 + random.nextInt(72);
+            int bitoffset = random.nextInt(8);
+            String endian = random.nextBoolean() ? "Little" : "Big";
+            Ecu ecu = buildSingleItemEcu(2, bitoffset, endian, "{\"bitscount\":" + bitscount + "}");
+
+            byte[] value = new byte[(bitscount + 7) / 8];
+            random.nextBytes(value);
+            if (bitscount % 8 != 0)
+                value[0] &= (1 << (bitscount % 8)) - 1;
+            String hexValue = Ecu.byteArrayToHex(value).toLowerCase();
+
+            HashMap<String, Object> hash = new HashMap<>();
+            hash.put("Item", hexValue);
+            byte[] frame = ecu.setRequestValues("Write", hash);
+            assertThat(ecu.getRequestValues(frame, "Write", false).get("Item"), is(hexValue));
+        }
+
+        Ecu ecu = buildSingleItemEcu(2, 0, "Big", "{\"bitscount\":8,\"bytescount\":1,\"scaled\":true,\"signed\":true}");
+        HashMap<String, Object> hash = new HashMap<>();
+        hash.put("Item", "-5");
+        byte[] frame = ecu.setRequestValues("Write", hash);
+        assertThat(frame[1], is((byte)0xFB));
+        assertThat(ecu.getRequestValues(frame, "Write", false).get("Item"), is("-5"));
+
+        ecu = buildSingleItemEcu(2, 0, "Little", "{\"bitscount\":16,\"bytescount\":2,\"scaled\":true,\"step\":0.5,\"offset\":-40}");
+        hash.put("Item", "12,5");
+        frame = ecu.setRequestValues("Write", hash);
+        assertThat(Ecu.byteArrayToHex(frame).substring(0, 6), is("2E6900"));
+        assertThat(ecu.getRequestValues(frame, "Write", false).get("Item"), is("12.50"));
+
+        ecu = buildSingleItemEcu(2, 4, "Big", "{\"bitscount\":16,\"bytescount\":2,\"bytesascii\":true}");
+        hash.put("Item", "A");
+        frame = ecu.setRequestValues("Write", hash);
+        assertThat(Ecu.byteArrayToHex(frame).substring(0, 8), is("2E020410"));
+        assertThat(ecu.getRequestValues(frame, "Write", false).get("Item"), is(" A"));
+    }
+
+    @Test
+    public void test_decode_plan(){
+        String[] ecuFiles = {"UCH_LE.json", "DDCR_-_BEB2_a_BEB4_-_v5.0.json", "acu.json", "test.json"};
+        Random random = new Random(7);
+        for (String ecuFile : ecuFiles) {
+            InputStream is = this.getClass().getClassLoader().getResourceAsStream(ecuFile);
+            Ecu ecu = new Ecu(is);
+            for (String requestName : ecu.getRequestNames()) {
+                Ecu.EcuRequest request = ecu.getRequest(requestName);
+                Ecu.DecodePlan plan = request.getDecodePlan();
+                assertThat(plan.size(), is(request.recvbyte_dataitems.size()));
+
+                byte[] frame = new byte[128];
+                random.nextBytes(frame);
+                HashMap<String, String> values = ecu.getRequestValues(frame, requestName, false);
+                for (int slot = 0; slot < plan.size(); ++slot) {
+                    String name = plan.getName(slot);
+                    assertThat(values.get(name), is(ecu.getRequestData(frame, requestName, name)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test_decode_plan_numeric_values(){
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("DDCR_-_BEB2_a_BEB4_-_v5.0.json");
+        Ecu ecu = new Ecu(is);
+        byte[] frame = Ecu.hexStringToByteArray("61A100000000940C0000840CAC30F7FFA00F43000000000A00000000");
+        Ecu.DecodePlan plan = ecu.getDecodePlan("Frame 1 : parameters");
+        long[] rawValues = new long[plan.size()];
+        double[] values = new double[plan.size()];
+        plan.decodeRaw(frame, rawValues);
+        plan.decodeValues(frame, values);
+
+        HashMap<String, String> displayValues = ecu.getRequestValues(frame, "Frame 1 : parameters", false);
+        for (int slot = 0; slot < plan.size(); ++slot){
+            Ecu.EcuData data = plan.getEcuData(slot);
+            String displayValue = displayValues.get(plan.getName(slot));
+            assertThat(plan.indexOf(plan.getName(slot)), is(slot));
+            assertThat(plan.format(slot, rawValues[slot]), is(displayValue));
+            // Formatted value is cached while the raw value doesn't change
+            assertSame(plan.format(slot, rawValues[slot]), plan.format(slot, rawValues[slot]));
+
+            if (data.scaled && data.format.isEmpty()){
+                assertEquals(Double.parseDouble(displayValue), values[slot], 0.0051);
+            } else if (!data.scaled && data.lists.isEmpty()){
+                assertEquals(new BigInteger(displayValue, 16).longValue(), rawValues[slot]);
+            }
+        }
+        assertThat(plan.indexOf("not a data item"), is(-1));
+    }
+
+    private static String legacyFmt(double d){
+        if(d == (long) d)
+            return String.format(Locale.US, "%d",(long)d);
+        else
+            return String.format(Locale.US, "%.2f",d);
+    }
+
+    @Test
+    public void test_append_decimal(){
+        double[] values = {0, -0.0, 1, -1, 0.125, -0.125, 1.005, 2.675, 0.001, -0.001, -0.005, 0.995,
+                99.995, 12.5, 1e6 + 0.5, 1e12 + 0.25, 123456.789, Double.NaN, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Long.MAX_VALUE, 0.1f, 3.3f, -40.7f};
+        for (double value : values){
+            assertThat(Ecu.appendDecimal(new StringBuilder(), value).toString(), is(legacyFmt(value)));
+        }
+
+        Random random = new Random(99);
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < 200000; ++n){
+            double value;
+            switch (n % 4){
+                case 0: value = (float)(random.nextInt(200000) - 100000) * 0.01f; break;
+                case 1: value = ((float)random.nextInt(65536) * 0.1f - 40.f) / 3.f; break;
+                case 2: value = (random.nextDouble() - 0.5) * 2e7; break;
+                default: value = (random.nextInt(2000000) - 1000000) / 1000.0; break;
+            }
+            sb.setLength(0);
+            assertThat(Ecu.appendDecimal(sb, value).toString(), is(legacyFmt(value)));
+        }
+    }
+
+    @Test
+    public void test_decode_benchmark(){
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("DDCR_-_BEB2_a_BEB4_-_v5.0.json");
+        Ecu ecu = new Ecu(is);
+        String requestName = "Frame 6 : OBD & Homologation";
+        Ecu.DecodePlan plan = ecu.getDecodePlan(requestName);
+        Random random = new Random(5);
+        byte[][] frames = new byte[64][];
+        for (int i = 0; i < frames.length; ++i){
+            frames[i] = new byte[32];
+            random.nextBytes(frames[i]);
+        }
+
+        // Former formatting: DecimalFormat built for each value, String.format otherwise
+        long legacyTime = 0, time = 0;
+        StringBuilder sb = new StringBuilder();
+        for (int pass = 0; pass < 3; ++pass) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 2000; ++i) {
+                byte[] frame = frames[i % frames.length];
+                for (int slot = 0; slot < plan.size(); ++slot) {
+                    Ecu.EcuData data = plan.getEcuData(slot);
+                    if (!data.scaled || data.bytesascii)
+                        continue;
+                    float res = (float) plan.decodeValue(frame, slot);
+                    String text = data.format.isEmpty() ? legacyFmt(res) :
+                            new DecimalFormat(data.format, new DecimalFormatSymbols(Locale.US)).format(res);
+                    if (i < frames.length)
+                        assertThat(text, is(data.formatRawValue(plan.decodeRaw(frame, slot))));
+                }
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < 2000; ++i) {
+                byte[] frame = frames[i % frames.length];
+                for (int slot = 0; slot < plan.size(); ++slot) {
+                    Ecu.EcuData data = plan.getEcuData(slot);
+                    if (!data.scaled || data.bytesascii)
+                        continue;
+                    sb.setLength(0);
+                    data.appendRawValue(sb, plan.decodeRaw(frame, slot));
+                }
+            }
+            legacyTime = middle - start;
+            time = System.nanoTime() - middle;
+        }
+        System.out.println("??  " + requestName + " (" + plan.size() + " items) legacy format : "
+                + legacyTime / 2000 + " ns/frame, cached format : " + time / 2000 + " ns/frame");
+    }
+
+    @Test
+    public void test_ecu_binary_round_trip() throws IOException {
+        String[] ecuFiles = {"UCH_LE.json", "DDCR_-_BEB2_a_BEB4_-_v5.0.json", "acu.json", "test.json"};
+        Random random = new Random(11);
+        for (String ecuFile : ecuFiles) {
+            InputStream is = this.getClass().getClassLoader().getResourceAsStream(ecuFile);
+            Ecu ecu = new Ecu(is);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ecu.writeBinary(new DataOutputStream(bytes));
+            Ecu cachedEcu = new Ecu(ByteBuffer.wrap(bytes.toByteArray()));
+
+            assertThat(cachedEcu.getName(), is(ecu.getName()));
+            assertThat(cachedEcu.getProtocol(), is(ecu.getProtocol()));
+            assertThat(cachedEcu.getTxId(), is(ecu.getTxId()));
+            assertThat(cachedEcu.getRxId(), is(ecu.getRxId()));
+            assertThat(cachedEcu.getDefaultSDS(), is(ecu.getDefaultSDS()));
+            assertThat(cachedEcu.getSdsrequests(), is(ecu.getSdsrequests()));
+            assertThat(cachedEcu.getRequestNames(), is(ecu.getRequestNames()));
+            for (String requestName : ecu.getRequestNames()) {
+                Ecu.EcuRequest request = ecu.getRequest(requestName);
+                Ecu.EcuRequest cachedRequest = cachedEcu.getRequest(requestName);
+                assertThat(cachedRequest.sentbytes, is(request.sentbytes));
+                assertThat(cachedRequest.replybytes, is(request.replybytes));
+                assertThat(cachedRequest.minbytes, is(request.minbytes));
+                assertThat(cachedRequest.sendbyte_dataitems.keySet(), is(request.sendbyte_dataitems.keySet()));
+
+                byte[] frame = new byte[128];
+                random.nextBytes(frame);
+                assertThat(cachedEcu.getRequestValues(frame, requestName, true),
+                        is(ecu.getRequestValues(frame, requestName, true)));
+            }
+        }
+    }
+
+    @Test
+    public void test_layout_binary_round_trip() throws IOException {
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("test.json.layout");
+        Layout layout = new Layout(is);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        layout.writeBinary(new DataOutputStream(bytes));
+        Layout cachedLayout = new Layout(ByteBuffer.wrap(bytes.toByteArray()));
+
+        assertThat(cachedLayout.getCategories(), is(layout.getCategories()));
+        for (String category : layout.getCategories()) {
+            assertThat(cachedLayout.getScreenNames(category), is(layout.getScreenNames(category)));
+            for (String screenName : layout.getScreenNames(category)) {
+                Layout.ScreenData screen = layout.getScreen(screenName);
+                Layout.ScreenData cachedScreen = cachedLayout.getScreen(screenName);
+                assertThat(cachedScreen.m_width, is(screen.m_width));
+                assertThat(cachedScreen.m_height, is(screen.m_height));
+                assertThat(cachedScreen.m_color.get(), is(screen.m_color.get()));
+                assertThat(cachedScreen.getPreSendData(), is(screen.getPreSendData()));
+
+                List<Layout.LabelData> labels = screen.getLabels();
+                assertThat(cachedScreen.getLabels().size(), is(labels.size()));
+                for (int i = 0; i < labels.size(); ++i) {
+                    assertThat(cachedScreen.getLabels().get(i).text, is(labels.get(i).text));
+                    assertThat(cachedScreen.getLabels().get(i).rect.area, is(labels.get(i).rect.area));
+                }
+                List<Layout.DisplayData> displays = screen.getDisplays();
+                assertThat(cachedScreen.getDisplays().size(), is(displays.size()));
+                for (int i = 0; i < displays.size(); ++i) {
+                    assertThat(cachedScreen.getDisplays().get(i).request, is(displays.get(i).request));
+                    assertThat(cachedScreen.getDisplays().get(i).font.size, is(displays.get(i).font.size));
+                }
+                List<Layout.ButtonData> buttons = screen.getButtons();
+                assertThat(cachedScreen.getButtons().size(), is(buttons.size()));
+                for (int i = 0; i < buttons.size(); ++i) {
+                    assertThat(cachedScreen.getButtons().get(i).uniqueName, is(buttons.get(i).uniqueName));
+                    assertThat(cachedScreen.getButtons().get(i).sendData, is(buttons.get(i).sendData));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test_model_cache_invalidation() throws IOException {
+        File appDir = File.createTempFile("ecucache", "");
+        assertTrue(appDir.delete() && appDir.mkdirs());
+        File ecuZip = new File(appDir, "ecu.zip");
+        assertTrue(ecuZip.createNewFile());
+        assertTrue(ecuZip.setLastModified(System.currentTimeMillis() - 60000));
+
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("acu.json");
+        Ecu ecu = new Ecu(is);
+        EcuModelCache cache = new EcuModelCache(appDir.getAbsolutePath(), ecuZip.getAbsolutePath());
+        assertNull(cache.loadEcu("ecus/acu.json"));
+        cache.storeEcu("ecus/acu.json", ecu);
+        Ecu cachedEcu = cache.loadEcu("ecus/acu.json");
+        assertNotNull(cachedEcu);
+        assertThat(cachedEcu.getRequestNames(), is(ecu.getRequestNames()));
+
+        // A newer ecu.zip invalidates the cache
+        assertTrue(ecuZip.setLastModified(System.currentTimeMillis() + 60000));
+        cache = new EcuModelCache(appDir.getAbsolutePath(), ecuZip.getAbsolutePath());
+        assertNull(cache.loadEcu("ecus/acu.json"));
+    }
+
+    @Test
+    public void test_model_cache_unparsed() throws IOException {
+        File appDir = File.createTempFile("ecucache", "");
+        assertTrue(appDir.delete() && appDir.mkdirs());
+        File ecuZip = new File(appDir, "ecu.zip");
+        assertTrue(ecuZip.createNewFile());
+        assertTrue(ecuZip.setLastModified(System.currentTimeMillis() - 60000));
+        EcuModelCache cache = new EcuModelCache(appDir.getAbsolutePath(), ecuZip.getAbsolutePath());
+
+        // Broken definitions are not parsed, storing them must not throw nor leave files
+        Ecu ecu = new Ecu("{ broken");
+        assertFalse(ecu.isParsed());
+        cache.storeEcu("ecus/broken.json", ecu);
+        assertNull(cache.loadEcu("ecus/broken.json"));
+        Layout layout = new Layout("{ broken");
+        assertFalse(layout.isParsed());
+        cache.storeLayout("ecus/broken.json.layout", layout);
+        assertNull(cache.loadLayout("ecus/broken.json.layout"));
+        String[] files = new File(appDir, "ecucache").list();
+        assertTrue(files == null || files.length == 0);
+
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("acu.json");
+        assertTrue(new Ecu(is).isParsed());
+    }
+
+    private File createAppDir() throws IOException {
+        File appDir = File.createTempFile("ecudb", "");
+        assertTrue(appDir.delete() && appDir.mkdirs());
+        return appDir;
+    }
+
+    /*
+     * Copies the test_ecu.zip resource (db.json, ecus/acu.json and its layout) in appDir
+     */
+    private File copyTestDatabase(File appDir) throws IOException {
+        File ecuZip = new File(appDir, "ecu.zip");
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream("test_ecu.zip");
+        FileOutputStream os = new FileOutputStream(ecuZip);
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = is.read(buffer)) > 0)
+            os.write(buffer, 0, len);
+        os.close();
+        is.close();
+        assertTrue(ecuZip.setLastModified(System.currentTimeMillis() - 60000));
+        return ecuZip;
+    }
+
+    @Test
+    public void test_load_database() throws Exception {
+        File appDir = createAppDir();
+        File ecuZip = copyTestDatabase(appDir);
+
+        // First load builds the index, second one uses it
+        for (int i = 0; i < 2; ++i) {
+            EcuDatabase database = new EcuDatabase();
+            database.loadDatabase(ecuZip.getAbsolutePath(), appDir.getAbsolutePath());
+            assertTrue(database.isLoaded());
+            assertTrue(new File(appDir, "ecu.idx").exists());
+
+            ArrayList<EcuDatabase.EcuInfo> acuInfos = database.getEcuInfo(0x2C);
+            assertThat(acuInfos.size(), is(1));
+            EcuDatabase.EcuInfo acuInfo = acuInfos.get(0);
+            assertThat(acuInfo.href, is("ecus/acu.json"));
+            assertThat(acuInfo.protocol, is("CAN"));
+            assertThat(acuInfo.projects.contains("X84"), is(true));
+            assertThat(acuInfo.ecuIdents.length, is(2));
+            assertThat(acuInfo.ecuIdents[1].soft_version, is("0002"));
+            assertThat(database.getEcuInfo(0x7A).size(), is(300));
+            assertTrue(Arrays.asList(database.getProjects()).contains("X91"));
+
+            assertSame(database.identifyOldEcu(0x2C, "ABC", "0002", "1600", 4), acuInfo);
+            assertTrue(acuInfo.exact_match);
+
+            InputStream is = this.getClass().getClassLoader().getResourceAsStream("acu.json");
+            Ecu ecu = new Ecu(is);
+            Ecu databaseEcu = database.getEcu("ecus/acu.json");
+            assertThat(databaseEcu.getName(), is(ecu.getName()));
+            assertThat(databaseEcu.getRequestNames(), is(ecu.getRequestNames()));
+            Layout layout = database.getLayout("ecus/acu.json.layout");
+            assertThat(layout.getCategories().isEmpty(), is(false));
+        }
+    }
+
+    private byte[] readResource(String name) throws IOException {
+        InputStream is = this.getClass().getClassLoader().getResourceAsStream(name);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = is.read(buffer)) > 0)
+            os.write(buffer, 0, len);
+        is.close();
+        return os.toByteArray();
+    }
+
+    @Test
+    public void test_zip_file_system() throws Exception {
+        File appDir = createAppDir();
+        File ecuZip = copyTestDatabase(appDir);
+        final ZipFileSystem zipFileSystem = new ZipFileSystem(ecuZip.getAbsolutePath(), appDir.getAbsolutePath());
+        zipFileSystem.getZipEntries();
+
+        final byte[] acu = readResource("acu.json");
+        final byte[] layout = readResource("test.json.layout");
+        assertTrue(zipFileSystem.fileExists("ecus/acu.json"));
+        assertNull(zipFileSystem.getZipFileAsBytes("ecus/missing.json"));
+        assertThat(zipFileSystem.getZipFile("ecus/acu.json.layout"), is(new String(layout, "UTF-8")));
+
+        // Concurrent reads share the mapped archive and the inflater pool
+        final int[] failures = new int[1];
+        Thread[] threads = new Thread[6];
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10; ++i) {
+                        if (!Arrays.equals(zipFileSystem.getZipFileAsBytes("ecus/acu.json"), acu)
+                                || !Arrays.equals(zipFileSystem.getZipFileAsBytes("ecus/acu.json.layout"), layout)) {
+                            synchronized (failures) {
+                                failures[0]++;
+                            }
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertThat(failures[0], is(0));
+
+        zipFileSystem.close();
+        assertThat(zipFileSystem.getZipFileAsBytes("ecus/acu.json"), is(acu));
+        zipFileSystem.close();
+    }
+
+    @Test
+    public void test_zip_index() throws Exception {
+        File appDir = createAppDir();
+        File ecuZip = new File(appDir, "ecu.zip");
+
+        // Streamed entries (data descriptors), a stored entry and a directory
+        byte[] acu = readResource("acu.json");
+        byte[] stored = "stored entry".getBytes("UTF-8");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(ecuZip));
+        zos.putNextEntry(new ZipEntry("ecus/"));
+        zos.closeEntry();
+        zos.putNextEntry(new ZipEntry("ecus/acu.json"));
+        zos.write(acu);
+        zos.closeEntry();
+        ZipEntry storedEntry = new ZipEntry("graphics/été.txt");
+        storedEntry.setMethod(ZipEntry.STORED);
+        storedEntry.setSize(stored.length);
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+        storedEntry.setCrc(crc.getValue());
+        zos.putNextEntry(storedEntry);
+        zos.write(stored);
+        zos.closeEntry();
+        zos.putNextEntry(new ZipEntry("db.json"));
+        zos.write("{}".getBytes("UTF-8"));
+        zos.closeEntry();
+        zos.close();
+
+        ZipFileSystem zipFileSystem = new ZipFileSystem(ecuZip.getAbsolutePath(), appDir.getAbsolutePath());
+        zipFileSystem.getZipEntries();
+        zipFileSystem.exportZipEntries();
+        zipFileSystem.close();
+
+        zipFileSystem = new ZipFileSystem(ecuZip.getAbsolutePath(), appDir.getAbsolutePath());
+        assertTrue(zipFileSystem.importZipEntries());
+        assertFalse(zipFileSystem.fileExists("ecus/"));
+        assertFalse(zipFileSystem.fileExists("ecus/acu"));
+        ZipFile zipFile = new ZipFile(ecuZip);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory())
+                    continue;
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                InputStream is = zipFile.getInputStream(entry);
+                byte[] buffer = new byte[4096];
+                int len;
+                while ((len = is.read(buffer)) > 0)
+                    os.write(buffer, 0, len);
+                is.close();
+                assertTrue(zipFileSystem.fileExists(entry.getName()));
+                assertThat(zipFileSystem.getZipFileAsBytes(entry.getName()), is(os.toByteArray()));
+            }
+        } finally {
+            zipFile.close();
+        }
+        assertThat(zipFileSystem.getZipFile("graphics/été.txt"), is("stored entry"));
+        zipFileSystem.close();
+
+        // Index files written in the old JSON format are rebuilt
+        FileOutputStream os = new FileOutputStream(new File(appDir, "ecu.idx"));
+        os.write("{\"db.json\":{\"pos\":30,\"size\":4,\"realsize\":2}}".getBytes("UTF-8"));
+        os.close();
+        assertFalse(new ZipFileSystem(ecuZip.getAbsolutePath(), appDir.getAbsolutePath()).importZipEntries());
+    }
+
+    @Test
+    public void test_hex_codec(){
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = (byte) i;
+        String hex = HexCodec.encode(bytes);
+        assertThat(hex, is(legacyByteArrayToHex(bytes)));
+        assertArrayEquals(bytes, HexCodec.decode(hex));
+        assertArrayEquals(bytes, HexCodec.decode(hex.toLowerCase()));
+        assertArrayEquals(new byte[]{0x62, (byte) 0xF1, (byte) 0x90}, HexCodec.decode("62 f1 90"));
+
+        byte[] dest = new byte[4];
+        assertThat(HexCodec.decode("xx0562F1", 2, 8, dest, 1), is(3));
+        assertArrayEquals(new byte[]{0, 0x05, 0x62, (byte) 0xF1}, dest);
+        assertThat(HexCodec.decode("0562F", 0, 5, dest, 0), is(-1));
+        assertThat(HexCodec.decode("05G2", 0, 4, dest, 0), is(-1));
+        assertThat(HexCodec.decode("0562F1", 0, 6, dest, 2), is(-1));
+
+        assertTrue(HexCodec.isHexadecimal("0123456789abcdefABCDEF"));
+        assertFalse(HexCodec.isHexadecimal("01 23"));
+        assertFalse(HexCodec.isHexadecimal("NO DATA"));
+        assertFalse(HexCodec.isHexadecimal("0\u00e9"));
+        try {
+            HexCodec.decode("0Z");
+            fail();
+        } catch (NumberFormatException e) {
+            // Invalid digit
+        }
+    }
+
+    private static String legacyByteArrayToHex(byte[] a) {
+        StringBuilder sb = new StringBuilder(a.length * 2);
+        for(byte b: a)
+            sb.append(String.format("%02x", b));
+        return sb.toString().toUpperCase();
+    }
+
+    private static byte[] legacyHexStringToByteArray(String s) {
+        s = s.replace(" ", "");
+        int len = s.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0, j = 0; i < len; i += 2, ++j) {
+            data[j] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
+                    + Character.digit(s.charAt(i+1), 16));
+        }
+        return data;
+    }
+
+    private static boolean legacyIsHexadecimal(String text) {
+        char[] hexDigits = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+                'a', 'b', 'c', 'd', 'e', 'f', 'A', 'B', 'C', 'D', 'E', 'F' };
+        for (char symbol : text.toCharArray()) {
+            boolean found = false;
+            for (char hexDigit : hexDigits) {
+                if (symbol == hexDigit) {
+                    found = true;
+                    break;
+                }
+            }
+            if(!found)
+                return false;
+        }
+        return true;
+    }
+
+    @Test
+    public void test_hex_benchmark(){
+        // CAN frame, long identification read, DTC dump
+        int[] sizes = {8, 64, 512};
+        Random random = new Random(11);
+        for (int size : sizes) {
+            byte[][] payloads = new byte[32][];
+            String[] hexs = new String[payloads.length];
+            for (int i = 0; i < payloads.length; ++i) {
+                payloads[i] = new byte[size];
+                random.nextBytes(payloads[i]);
+                hexs[i] = legacyByteArrayToHex(payloads[i]);
+            }
+            int iterations = 200000 / size;
+            long legacyTime = 0, time = 0;
+            char[] chars = new char[size * 2];
+            byte[] bytes = new byte[size];
+            for (int pass = 0; pass < 3; ++pass) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; ++i) {
+                    int n = i % payloads.length;
+                    String hex = legacyByteArrayToHex(payloads[n]);
+                    if (legacyIsHexadecimal(hex))
+                        legacyHexStringToByteArray(hex);
+                }
+                long middle = System.nanoTime();
+                for (int i = 0; i < iterations; ++i) {
+                    int n = i % payloads.length;
+                    HexCodec.encode(payloads[n], 0, size, chars, 0);
+                    if (HexCodec.isHexadecimal(hexs[n]))
+                        HexCodec.decode(hexs[n], 0, size * 2, bytes, 0);
+                }
+                legacyTime = middle - start;
+                time = System.nanoTime() - middle;
+            }
+            assertThat(HexCodec.encode(payloads[0]), is(hexs[0]));
+            System.out.println("??  hex " + size + " bytes encode/validate/decode : legacy "
+                    + legacyTime / iterations + " ns, codec " + time / iterations + " ns");
+        }
+    }
+
+    @Test
+    public void test_isotp_round_trip(){
+        Random random = new Random(7);
+        IsoTPReassembler reassembler = new IsoTPReassembler();
+        byte[] frame = new byte[IsoTPSegmenter.FRAME_SIZE];
+        // Up to 300 bytes : sequence numbers wrap several times
+        for (int length = 0; length <= 300; ++length){
+            byte[] payload = new byte[length];
+            random.nextBytes(payload);
+            int count = IsoTPSegmenter.getFrameCount(length);
+            reassembler.reset();
+            int status = IsoTPReassembler.STATUS_INCOMPLETE;
+            for (int i = 0; i < count; ++i){
+                assertThat(status, is(IsoTPReassembler.STATUS_INCOMPLETE));
+                int frameLength = IsoTPSegmenter.getFrame(payload, 0, length, i, frame);
+                if (i > 0)
+                    assertThat(frame[0] & 0xFF, is(0x20 | (i & 0xF)));
+                status = reassembler.addFrame(frame, 0, frameLength);
+            }
+            assertThat(status, is(IsoTPReassembler.STATUS_COMPLETE));
+            assertArrayEquals(payload, reassembler.toByteArray());
+        }
+    }
+
+    @Test
+    public void test_isotp_string_adapters(){
+        assertThat(new IsoTPEncode("22F190").getFormattedArray(),
+                is(Arrays.asList("0322F190")));
+        assertThat(new IsoTPEncode("2E0102030405060708090A").getFormattedArray(),
+                is(Arrays.asList("100B2E0102030405", "21060708090A")));
+
+        ArrayList<String> frames = new ArrayList<>(Arrays.asList("0462F180AB00"));
+        assertThat(new IsoTPDecode(frames).decodeCan(), is("62F180AB"));
+        frames = new ArrayList<>(Arrays.asList("037F2278", "0462F180AB"));
+        assertThat(new IsoTPDecode(frames).decodeCan(), is("62F180AB"));
+
+        // DTC dump, padded last frame
+        frames = new ArrayList<>();
+        frames.add("1014570690074190");
+        frames.add("2108419042529008");
+        frames.add("2242900742907C40");
+        assertThat(new IsoTPDecode(frames).decodeCan(), is("5706900741900841904252900842900742907C40"));
+
+        frames.set(2, "2342900742907C40");
+        assertThat(new IsoTPDecode(frames).decodeCan(), is("ERROR : BAD CFC"));
+        frames.remove(2);
+        assertThat(new IsoTPDecode(frames).decodeCan(), is("ERROR : RESPONSE TOO SHORT"));
+        assertThat(new IsoTPDecode(new ArrayList<String>()).decodeCan(), is("ERROR : NO DATA"));
+        frames = new ArrayList<>(Arrays.asList("0562F1"));
+        assertThat(new IsoTPDecode(frames).decodeCan(), is("ERROR : RESPONSE TOO SHORT"));
+        frames = new ArrayList<>(Arrays.asList("0562F18Z0A"));
+        assertThat(new IsoTPDecode(frames).decodeCan(), is("ERROR : NON HEXA"));
+    }
+
 //    @Test
 //    public void test_ecu() {
 //        assertTrue(getClass().getResource("test.json") == null);
@@ -5,9 +5,12 @@ import android.util.Pair;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
@@ -30,6 +33,8 @@ public class Ecu {
     private String kw1, kw2, ecu_send_id, ecu_recv_id;
     private boolean fastinit;
     private String m_defaultSDS;
+    // False if the definition could not be fully read
+    private boolean m_parsed;
 
     private class EcuDataItem{
         public int firstbyte;
@@ -50,6 +55,32 @@ public class Ecu {
                 e.printStackTrace();
             }
         }
+
+        EcuDataItem(ByteBuffer buffer){
+            name = EcuModelCache.readString(buffer);
+            firstbyte = buffer.getInt();
+            bitoffset = buffer.getInt();
+            ref = EcuModelCache.readBoolean(buffer);
+            endian = EcuModelCache.readString(buffer);
+            req_endian = EcuModelCache.readString(buffer);
+        }
+
+        void writeBinary(DataOutputStream out) throws IOException {
+            EcuModelCache.writeString(out, name);
+            out.writeInt(firstbyte);
+            out.writeInt(bitoffset);
+            out.writeBoolean(ref);
+            EcuModelCache.writeString(out, endian);
+            EcuModelCache.writeString(out, req_endian);
+        }
+
+        boolean isLittleEndian(){
+            if (endian.equals("Little"))
+                return true;
+            if (endian.equals("Big"))
+                return false;
+            return "Little".equals(global_endian);
+        }
     }
 
     public HashMap<String, String> getSdsrequests(){
@@ -104,6 +135,8 @@ public class Ecu {
         public String unit = "";
         public String comment = "";
         public String name;
+        // Compiled from format, null when no (valid) format is given
+        private DecimalFormat decimalFormat;
         EcuData(JSONObject json, String name) {
             this.name = name;
             try {
@@ -162,32 +195,86 @@ public class Ecu {
             } catch (Exception e) {
                 e.printStackTrace();
             }
-        }
-
-        public byte[] setValue(Object value, byte[] byte_list, EcuDataItem dataitem){
-            int start_byte = dataitem.firstbyte - 1;
-            int startBit = dataitem.bitoffset;
-            boolean little_endian = false;
-
-            int requiredDataBytesLen = (int)(Math.ceil(((float)bitscount + (float)startBit) / 8.0f));
 
-            if (global_endian.equals("Little"))
-                little_endian = true;
+            compileFormat();
+        }
 
-            if (dataitem.endian.equals("Little"))
-                little_endian = true;
+        EcuData(ByteBuffer buffer){
+            name = EcuModelCache.readString(buffer);
+            bitscount = buffer.getInt();
+            scaled = EcuModelCache.readBoolean(buffer);
+            signed = EcuModelCache.readBoolean(buffer);
+            isbyte = EcuModelCache.readBoolean(buffer);
+            binary = EcuModelCache.readBoolean(buffer);
+            bytescount = buffer.getInt();
+            bytesascii = EcuModelCache.readBoolean(buffer);
+            step = buffer.getFloat();
+            offset = buffer.getFloat();
+            divideby = buffer.getFloat();
+            format = EcuModelCache.readString(buffer);
+            description = EcuModelCache.readString(buffer);
+            unit = EcuModelCache.readString(buffer);
+            comment = EcuModelCache.readString(buffer);
+
+            int count = buffer.getInt();
+            lists = new HashMap<>(count * 2);
+            for (int i = 0; i < count; ++i){
+                int key = buffer.getInt();
+                lists.put(key, EcuModelCache.readString(buffer));
+            }
+            count = buffer.getInt();
+            items = new HashMap<>(count * 2);
+            for (int i = 0; i < count; ++i){
+                String key = EcuModelCache.readString(buffer);
+                items.put(key, buffer.getInt());
+            }
 
-            if (dataitem.endian.equals("Big"))
-                little_endian = false;
+            compileFormat();
+        }
 
+        void writeBinary(DataOutputStream out) throws IOException {
+            EcuModelCache.writeString(out, name);
+            out.writeInt(bitscount);
+            out.writeBoolean(scaled);
+            out.writeBoolean(signed);
+            out.writeBoolean(isbyte);
+            out.writeBoolean(binary);
+            out.writeInt(bytescount);
+            out.writeBoolean(bytesascii);
+            out.writeFloat(step);
+            out.writeFloat(offset);
+            out.writeFloat(divideby);
+            EcuModelCache.writeString(out, format);
+            EcuModelCache.writeString(out, description);
+            EcuModelCache.writeString(out, unit);
+            EcuModelCache.writeString(out, comment);
+
+            out.writeInt(lists.size());
+            for (Map.Entry<Integer, String> entry : lists.entrySet()){
+                out.writeInt(entry.getKey());
+                EcuModelCache.writeString(out, entry.getValue());
+            }
+            out.writeInt(items.size());
+            for (Map.Entry<String, Integer> entry : items.entrySet()){
+                EcuModelCache.writeString(out, entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        }
 
-            /*
-             * Not sure it's required to format little endian values...
-             * Will have to check that
-             */
-            little_endian = false;
+        private void compileFormat(){
+            if (!format.isEmpty()) {
+                try {
+                    decimalFormat = new DecimalFormat(format, new DecimalFormatSymbols(Locale.US));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
 
-            String finalbinvalue;
+        public byte[] setValue(Object value, byte[] byte_list, EcuDataItem dataitem){
+            int start_byte = dataitem.firstbyte - 1;
+            int startBit = dataitem.bitoffset;
+            boolean little_endian = dataitem.isLittleEndian();
 
             if (bytesascii){
                 if (!(value instanceof String)){
@@ -196,162 +283,84 @@ public class Ecu {
                 String strvalue = (String)value;
                 if (bytescount > strvalue.length())
                     strvalue = padLeft(strvalue, bytescount, " ");
-                if (bytescount < strvalue.length())
-                    strvalue = strvalue.substring(0, bytescount);
-
-                strvalue = stringToHex(strvalue);
-                finalbinvalue = hexToBinary(strvalue);
-            } else {
-                if (scaled) {
-                    // We want a float or integer here
-                    float floatval;
-                    if (value instanceof Integer) {
-                        floatval = (float) ((Integer) value);
-                    } else if (value instanceof Float) {
-                        floatval = (float) value;
-                    } else if (value instanceof String) {
-                        // Replace comma with point and remove spaces
-                        value = ((String) value).replace(",", ".");
-                        value = ((String) value).replace(" ", "");
-                        floatval = Float.parseFloat((String)value);
-                    } else {
-                        throw new ClassCastException("Value must be an integer or float");
-                    }
-
 
-                    floatval = ((floatval * divideby) - offset) / step;
-                    int intval = (int) floatval;
-                    finalbinvalue = integerToBinaryString(intval, bitscount);
-                } else {
-                    // Hex string
-                    if (!(value instanceof String)) {
-                        throw new ClassCastException("Value must be a hex string");
-                    }
-                    String vv = (String)value;
-                    finalbinvalue = hexToBinary(vv.replaceAll(" ", ""));
+                byte[] asciivalue = new byte[bytescount];
+                for (int i = 0; i < bytescount; ++i){
+                    asciivalue[i] = (byte)strvalue.charAt(i);
                 }
+                insertBytes(byte_list, start_byte, startBit, bitscount, little_endian, asciivalue);
+                return byte_list;
             }
 
-            finalbinvalue = padLeft(finalbinvalue, bitscount, "0");
-            int numreqbytes = (int)(Math.ceil(((float)(bitscount + startBit) / 8.f)));
-
-            byte[] request_bytes = Arrays.copyOfRange(byte_list, start_byte, start_byte + numreqbytes);
-            StringBuilder requestasbin = new StringBuilder();
-            String bitmask = padLeft("", bitscount, "1");
-
-            for (byte request_byte : request_bytes) {
-                requestasbin.append(byteToBinaryString(request_byte, 8));
-            }
-
-            if (little_endian){
-                /*
-                 * Handle little endian value (not an easy task...)
-                 */
-                // Moves the bytes to to left
-                for (int i = 0; i < startBit; ++i) {
-                    finalbinvalue += "0";
-                    bitmask += "0";
+            if (scaled) {
+                // We want a float or integer here
+                float floatval;
+                if (value instanceof Integer) {
+                    floatval = (float) ((Integer) value);
+                } else if (value instanceof Float) {
+                    floatval = (float) value;
+                } else if (value instanceof String) {
+                    // Replace comma with point and remove spaces
+                    value = ((String) value).replace(",", ".");
+                    value = ((String) value).replace(" ", "");
+                    floatval = Float.parseFloat((String)value);
+                } else {
+                    throw new ClassCastException("Value must be an integer or float");
                 }
 
-                finalbinvalue = padLeft(finalbinvalue, requiredDataBytesLen * 8, "0");
-                bitmask = padLeft(bitmask, requiredDataBytesLen * 8, "0");
-                String tmp = "";
-                String tmpmask = "";
-                for (int i = requiredDataBytesLen - 1; i >= 0 ; --i){
-                    tmp += finalbinvalue.substring(i * 8, i * 8 + 8);
-                    tmpmask += bitmask.substring(i * 8, i * 8 + 8);
-                }
-                finalbinvalue = tmp;
-                bitmask = tmpmask;
+                floatval = ((floatval * divideby) - offset) / step;
+                int intval = (int) floatval;
+                // Negative values are written as two's complement on bitscount bits
+                insertBits(byte_list, start_byte, startBit, bitscount, little_endian, intval);
+                return byte_list;
             }
 
-            char[] binaryRequest = requestasbin.toString().toCharArray();
-            char[] binaryValue = finalbinvalue.toCharArray();
-
-            if (little_endian) {
-                for (int i = 0; i < bitscount; ++i) {
-                    if (bitmask.charAt(i) == '1') {
-                        binaryRequest[i + startBit] = binaryValue[i];
-                    }
-                }
-            } else {
-                for (int i = 0; i < bitscount; ++i) {
-                    if (little_endian && bitmask.charAt(i) == '1'){
-                        binaryRequest[i + startBit] = binaryValue[i];
-                    } else {
-                        binaryRequest[i + startBit] = binaryValue[i];
-                    }
-                }
+            // Hex string
+            if (!(value instanceof String)) {
+                throw new ClassCastException("Value must be a hex string");
             }
-
-            BigInteger valueashex = new BigInteger(new String(binaryRequest), 2);
-            String str16 = padLeft(valueashex.toString(16), bytescount*2, "0");
-
-            for (int i = 0; i < bytescount; ++i){
-                String hexpart = str16.substring(i*2, i*2 + 2);
-                byte[] b = hexStringToByteArray(hexpart);
-                byte_list[i + start_byte] = b[0];
+            String hexvalue = ((String)value).replace(" ", "");
+            if (hexvalue.length() <= 16) {
+                insertBits(byte_list, start_byte, startBit, bitscount, little_endian, parseHexLong(hexvalue));
+            } else {
+                insertBytes(byte_list, start_byte, startBit, bitscount, little_endian, parseHexBytes(hexvalue));
             }
-
             return byte_list;
         }
 
-        public String getHexValue(byte[] resp, EcuDataItem dataitem){
-            int startByte = dataitem.firstbyte;
-            int startBit = dataitem.bitoffset;
-            int bits = bitscount;
-
-            boolean little_endian = false;
-
-            if (global_endian.equals("Little"))
-                little_endian = true;
-
-            if (dataitem.endian.equals("Little"))
-                little_endian = true;
-            if (dataitem.endian.equals("Big"))
-                little_endian = false;
-
-            int dataBytesLen = (int)(Math.ceil((float)bits / 8.0f));
-            int requiredDataBytesLen = (int)(Math.ceil(((float)bits + (float)startBit) / 8.0f));
-            int sb = startByte - 1;
-
-            if ((sb + dataBytesLen) > resp.length) {
+        private void checkResponseLength(byte[] resp, EcuDataItem dataitem){
+            int dataBytesLen = (bitscount + 7) / 8;
+            if ((dataitem.firstbyte - 1 + dataBytesLen) > resp.length) {
                 throw new ArrayIndexOutOfBoundsException("Response too short");
             }
+        }
 
-            String hexToBin = "";
-            String hex;
-
-            if (little_endian){
-                int bitlength = requiredDataBytesLen * 8;
-                for (int i = 0; i < requiredDataBytesLen; ++i){
-                    byte b = resp[i+sb];
-                    hexToBin = byteToBinaryString(b, 8) + hexToBin;
-                }
-
-                hexToBin = hexToBin.substring(bitlength - startBit - bitscount, bitlength - startBit);
-                BigInteger bigValue = new BigInteger(hexToBin, 2);
-                hex = bigValue.toString(16);
-            } else {
-                for (int i = 0; i < requiredDataBytesLen; ++i){
-                    byte b = resp[i+sb];
-                    hexToBin += byteToBinaryString(b, 8);
-                }
+        /*
+         * Raw value of the data item, read straight from the response bytes
+         * Only the 64 least significant bits are returned for wider items
+         */
+        public long getRawValue(byte[] resp, EcuDataItem dataitem){
+            checkResponseLength(resp, dataitem);
+            int startByte = dataitem.firstbyte - 1;
+            boolean little_endian = dataitem.isLittleEndian();
+            if (bitscount <= 64 || little_endian)
+                return extractBits(resp, startByte, dataitem.bitoffset, Math.min(bitscount, 64), little_endian);
+            return extractBits(resp, startByte, dataitem.bitoffset + bitscount - 64, 64, false);
+        }
 
-                hexToBin = hexToBin.substring(startBit, startBit + bitscount);
-                BigInteger bigValue = new BigInteger(hexToBin, 2);
-                hex = bigValue.toString(16);
-            }
+        public byte[] getBytesValue(byte[] resp, EcuDataItem dataitem){
+            checkResponseLength(resp, dataitem);
+            return extractBytes(resp, dataitem.firstbyte - 1, dataitem.bitoffset, bitscount, dataitem.isLittleEndian());
+        }
 
-            return padLeft(hex, dataBytesLen * 2, "0");
+        public String getHexValue(byte[] resp, EcuDataItem dataitem){
+            checkResponseLength(resp, dataitem);
+            return extractHex(resp, dataitem.firstbyte - 1, dataitem.bitoffset, bitscount, dataitem.isLittleEndian());
         }
 
         public String fmt(double d)
         {
-            if(d == (long) d)
-                return String.format(Locale.US, "%d",(long)d);
-            else
-                return String.format(Locale.US, "%.2f",d);
+            return appendDecimal(new StringBuilder(16), d).toString();
         }
 
         public String getDisplayValueWithUnit(byte[] resp, EcuDataItem dataitem){
@@ -359,61 +368,115 @@ public class Ecu {
         }
 
         public String getDisplayValue(byte[] resp, EcuDataItem dataItem){
-            String hexval = getHexValue(resp, dataItem);
-             if (bytesascii){
-                 byte[] s = hexStringToByteArray(hexval);
-                 return new String(s);
-             }
-
-             if (!scaled){
-                 BigInteger bigInteger = new BigInteger(hexval, 16);
-                 int val = bigInteger.intValue();
-
-                 if (signed){
-                     // Check that
-                     if (bytescount == 1) {
-                         val = hex8ToSigned(val);
-                     } else if (bytescount == 2){
-                         val = hex16ToSigned(val);
-                     } // 32 bits are already signed
-                 }
-
-                 if (lists.containsKey(val))
-                     return lists.get(val);
-
-                 return hexval;
-             }
-
-            BigInteger bigInteger = new BigInteger(hexval, 16);
-            int val = bigInteger.intValue();
+            if (bytesascii){
+                return new String(getBytesValue(resp, dataItem));
+            }
 
+            long rawValue = getRawValue(resp, dataItem);
+            if (bitscount > 64 && !scaled && !lists.containsKey(getIntValue(rawValue)))
+                return getHexValue(resp, dataItem);
+            return formatRawValue(rawValue);
+        }
+
+        int getIntValue(long rawValue){
+            int val = (int)rawValue;
             if (signed){
-                if (bytescount == 1){
+                // Check that
+                if (bytescount == 1) {
                     val = hex8ToSigned(val);
                 } else if (bytescount == 2){
                     val = hex16ToSigned(val);
-                }
+                } // 32 bits are already signed
             }
+            return val;
+        }
 
+        float getScaledValue(int val){
             if (divideby == 0.f){
                 throw new ArithmeticException("Division by zero");
             }
 
-            float res = ((float)val * step + (offset)) / divideby;
+            return ((float)val * step + (offset)) / divideby;
+        }
 
-            if (!format.isEmpty()) {
-                try {
+        /*
+         * Numeric value from a raw value as returned by getRawValue,
+         * NaN for ascii values
+         */
+        public double getNumericValue(long rawValue){
+            if (bytesascii)
+                return Double.NaN;
+            int val = getIntValue(rawValue);
+            if (!scaled)
+                return val;
+            return getScaledValue(val);
+        }
 
-                    DecimalFormat df = new DecimalFormat(format, new DecimalFormatSymbols(Locale.US));
-                    return df.format(res);
-                } catch (Exception e){
-                    e.printStackTrace();
+        /*
+         * Display value from a raw value as returned by getRawValue
+         * (not suitable for ascii values)
+         */
+        public String formatRawValue(long rawValue){
+            int val = getIntValue(rawValue);
+
+            if (!scaled){
+                if (lists.containsKey(val))
+                    return lists.get(val);
+
+                return longToHex(rawValue, (bitscount + 7) / 8);
+            }
+
+            return appendScaledValue(new StringBuilder(16), getScaledValue(val)).toString();
+        }
+
+        /*
+         * Same as formatRawValue, appending to a caller (reusable) StringBuilder
+         */
+        public StringBuilder appendRawValue(StringBuilder sb, long rawValue){
+            if (!scaled)
+                return sb.append(formatRawValue(rawValue));
+            return appendScaledValue(sb, getScaledValue(getIntValue(rawValue)));
+        }
+
+        private StringBuilder appendScaledValue(StringBuilder sb, float res){
+            if (decimalFormat != null) {
+                // DecimalFormat is not thread safe
+                synchronized (decimalFormat) {
+                    return sb.append(decimalFormat.format(res));
                 }
             }
-            return fmt(res);
+            return appendDecimal(sb, res);
         }
     }
 
+    /*
+     * Appends d as "%d" when it has no decimal part, as "%.2f" otherwise
+     * (Locale.US). String.format is only used close to a rounding boundary
+     * or for large values
+     */
+    public static StringBuilder appendDecimal(StringBuilder sb, double d){
+        if (d == (long) d)
+            return sb.append((long) d);
+
+        double abs = Math.abs(d);
+        if (abs < 1e6) {
+            double cents = abs * 100.0;
+            double floor = Math.floor(cents);
+            double fraction = cents - floor;
+            if (Math.abs(fraction - 0.5) > 1e-6) {
+                long rounded = (long) floor + (fraction > 0.5 ? 1 : 0);
+                if (d < 0)
+                    sb.append('-');
+                sb.append(rounded / 100).append('.');
+                int decimals = (int) (rounded % 100);
+                if (decimals < 10)
+                    sb.append('0');
+                return sb.append(decimals);
+            }
+        }
+        return sb.append(String.format(Locale.US, "%.2f", d));
+    }
+
     public static String integerToBinaryString(int b, int padding){
         return padLeft(Integer.toBinaryString(b), padding, "0");
     }
@@ -438,14 +501,7 @@ public class Ecu {
     }
 
     public static byte[] hexStringToByteArray(String s) {
-        s = s.replace(" ", "");
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0, j = 0; i < len; i += 2, ++j) {
-            data[j] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i+1), 16));
-        }
-        return data;
+        return HexCodec.decode(s);
     }
 
     public static String stringToHex(String string) {
@@ -466,6 +522,142 @@ public class Ecu {
         return pad.substring(str.length()) + str;
     }
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /*
+     * Bit level accessors working directly on frame bytes
+     * byteOffset is zero based, bitOffset is counted from the most significant bit
+     * of the first byte for big endian values and from the least significant bit
+     * of the first byte for little endian values (same as the database bitoffset)
+     */
+    public static long extractBits(byte[] data, int byteOffset, int bitOffset, int bitsCount, boolean littleEndian){
+        byteOffset += bitOffset >> 3;
+        bitOffset &= 7;
+        int bytesLen = (bitOffset + bitsCount + 7) >> 3;
+        int trailingBits = (bytesLen << 3) - bitOffset - bitsCount;
+        long value = 0;
+
+        for (int i = 0; i < bytesLen; ++i){
+            int shift = littleEndian ? (i << 3) - bitOffset : ((bytesLen - 1 - i) << 3) - trailingBits;
+            if (shift <= -8 || shift >= 64)
+                continue;
+            long b = data[byteOffset + i] & 0xFF;
+            value |= shift >= 0 ? b << shift : b >>> -shift;
+        }
+
+        if (bitsCount >= 64)
+            return value;
+        return value & ((1L << bitsCount) - 1);
+    }
+
+    /*
+     * Same as extractBits for values of any width, the value is returned
+     * right aligned in (bitsCount + 7) / 8 bytes, most significant byte first
+     */
+    public static byte[] extractBytes(byte[] data, int byteOffset, int bitOffset, int bitsCount, boolean littleEndian){
+        int bytesLen = (bitsCount + 7) >> 3;
+        byte[] result = new byte[bytesLen];
+        if (bytesLen == 0)
+            return result;
+
+        if (littleEndian) {
+            for (int j = 0; j < bytesLen; ++j) {
+                int bitPos = bitOffset + (j << 3);
+                result[bytesLen - 1 - j] = (byte)extractBits(data, byteOffset, bitPos,
+                        Math.min(8, bitsCount - (j << 3)), true);
+            }
+        } else {
+            int headBits = bitsCount - ((bytesLen - 1) << 3);
+            result[0] = (byte)extractBits(data, byteOffset, bitOffset, headBits, false);
+            for (int j = 1; j < bytesLen; ++j) {
+                result[j] = (byte)extractBits(data, byteOffset, bitOffset + headBits + ((j - 1) << 3), 8, false);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Writes the bitsCount least significant bits of value into data, using the
+     * same byteOffset/bitOffset convention as extractBits. Other bits are left untouched
+     */
+    public static void insertBits(byte[] data, int byteOffset, int bitOffset, int bitsCount, boolean littleEndian, long value){
+        byteOffset += bitOffset >> 3;
+        bitOffset &= 7;
+        int bytesLen = (bitOffset + bitsCount + 7) >> 3;
+        int trailingBits = (bytesLen << 3) - bitOffset - bitsCount;
+        long mask = bitsCount >= 64 ? -1L : (1L << bitsCount) - 1;
+        value &= mask;
+
+        for (int i = 0; i < bytesLen; ++i){
+            int shift = littleEndian ? (i << 3) - bitOffset : ((bytesLen - 1 - i) << 3) - trailingBits;
+            if (shift <= -8 || shift >= 64)
+                continue;
+            int byteMask = (int)(shift >= 0 ? mask >>> shift : mask << -shift) & 0xFF;
+            int byteValue = (int)(shift >= 0 ? value >>> shift : value << -shift) & 0xFF;
+            data[byteOffset + i] = (byte)((data[byteOffset + i] & ~byteMask) | (byteValue & byteMask));
+        }
+    }
+
+    /*
+     * Same as insertBits for values of any width, value holds the bits
+     * right aligned, most significant byte first (missing high bytes are zeroes)
+     */
+    public static void insertBytes(byte[] data, int byteOffset, int bitOffset, int bitsCount, boolean littleEndian, byte[] value){
+        for (int j = 0; (j << 3) < bitsCount; ++j){
+            int chunkBits = Math.min(8, bitsCount - (j << 3));
+            long chunk = j < value.length ? value[value.length - 1 - j] & 0xFF : 0;
+            int chunkOffset = littleEndian ? bitOffset + (j << 3) : bitOffset + bitsCount - (j << 3) - chunkBits;
+            insertBits(data, byteOffset, chunkOffset, chunkBits, littleEndian, chunk);
+        }
+    }
+
+    private static long parseHexLong(String hex){
+        if (hex.isEmpty())
+            throw new NumberFormatException("Empty hex value");
+        long value = 0;
+        for (int i = 0; i < hex.length(); ++i){
+            int digit = HexCodec.digit(hex.charAt(i));
+            if (digit < 0)
+                throw new NumberFormatException("Invalid hex value : " + hex);
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static byte[] parseHexBytes(String hex){
+        if (hex.length() % 2 != 0)
+            hex = "0" + hex;
+        byte[] value = new byte[hex.length() / 2];
+        if (HexCodec.decode(hex, 0, hex.length(), value, 0) < 0)
+            throw new NumberFormatException("Invalid hex value : " + hex);
+        return value;
+    }
+
+    public static String extractHex(byte[] data, int byteOffset, int bitOffset, int bitsCount, boolean littleEndian){
+        if (bitsCount <= 64)
+            return longToHex(extractBits(data, byteOffset, bitOffset, bitsCount, littleEndian), (bitsCount + 7) >> 3);
+
+        byte[] bytes = extractBytes(data, byteOffset, bitOffset, bitsCount, littleEndian);
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i){
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /*
+     * Lower case hex representation of value, left padded with zeroes to bytesCount bytes
+     */
+    public static String longToHex(long value, int bytesCount){
+        char[] hex = new char[bytesCount * 2];
+        for (int i = hex.length - 1; i >= 0; --i){
+            hex[i] = HEX_DIGITS[(int)(value & 0x0F)];
+            value >>>= 4;
+        }
+        return new String(hex);
+    }
+
     public class EcuRequest {
         public class SDS {
             public boolean nosds = true;
@@ -483,11 +675,21 @@ public class Ecu {
         public HashMap<String, EcuDataItem> sendbyte_dataitems;
         public String name;
         public SDS sds;
+        private DecodePlan decodePlan;
 
         EcuDataItem getSendDataItem(String item){
             return sendbyte_dataitems.get(item);
         }
 
+        /*
+         * Flat decode plan of the received data items, built on first use
+         */
+        public DecodePlan getDecodePlan(){
+            if (decodePlan == null)
+                decodePlan = new DecodePlan(this);
+            return decodePlan;
+        }
+
         EcuRequest(JSONObject json) {
             sds = new SDS();
             recvbyte_dataitems = new HashMap<>();
@@ -536,6 +738,211 @@ public class Ecu {
                 e.printStackTrace();
             }
         }
+
+        EcuRequest(ByteBuffer buffer){
+            sds = new SDS();
+            name = EcuModelCache.readString(buffer);
+            minbytes = buffer.getInt();
+            shiftbytescount = buffer.getInt();
+            replybytes = EcuModelCache.readString(buffer);
+            sentbytes = EcuModelCache.readString(buffer);
+            manualsend = EcuModelCache.readBoolean(buffer);
+            sds.nosds = EcuModelCache.readBoolean(buffer);
+            sds.plant = EcuModelCache.readBoolean(buffer);
+            sds.aftersales = EcuModelCache.readBoolean(buffer);
+            sds.engineering = EcuModelCache.readBoolean(buffer);
+            sds.supplier = EcuModelCache.readBoolean(buffer);
+            sendbyte_dataitems = readDataItems(buffer);
+            recvbyte_dataitems = readDataItems(buffer);
+        }
+
+        private HashMap<String, EcuDataItem> readDataItems(ByteBuffer buffer){
+            int count = buffer.getInt();
+            HashMap<String, EcuDataItem> dataitems = new HashMap<>(count * 2);
+            for (int i = 0; i < count; ++i){
+                EcuDataItem dataitem = new EcuDataItem(buffer);
+                dataitems.put(dataitem.name, dataitem);
+            }
+            return dataitems;
+        }
+
+        void writeBinary(DataOutputStream out) throws IOException {
+            EcuModelCache.writeString(out, name);
+            out.writeInt(minbytes);
+            out.writeInt(shiftbytescount);
+            EcuModelCache.writeString(out, replybytes);
+            EcuModelCache.writeString(out, sentbytes);
+            out.writeBoolean(manualsend);
+            out.writeBoolean(sds.nosds);
+            out.writeBoolean(sds.plant);
+            out.writeBoolean(sds.aftersales);
+            out.writeBoolean(sds.engineering);
+            out.writeBoolean(sds.supplier);
+            out.writeInt(sendbyte_dataitems.size());
+            for (EcuDataItem dataitem : sendbyte_dataitems.values())
+                dataitem.writeBinary(out);
+            out.writeInt(recvbyte_dataitems.size());
+            for (EcuDataItem dataitem : recvbyte_dataitems.values())
+                dataitem.writeBinary(out);
+        }
+    }
+
+    /*
+     * Response decoding of a request compiled into arrays, so that decoding
+     * a frame is a loop over primitives instead of HashMap lookups.
+     * Items are addressed by slot (0 to size() - 1)
+     */
+    public class DecodePlan {
+        private final String[] names;
+        private final EcuData[] datas;
+        private final EcuDataItem[] dataItems;
+        // Items decoded by EcuData itself (ascii or wider than 64 bits)
+        private final boolean[] wide;
+        private final int[] requiredLengths;
+        private final int[] byteOffsets;
+        private final int[] bytesLens;
+        private final int[] firstShifts;
+        private final int[] shiftSteps;
+        private final long[] masks;
+        // Last formatted value of each slot
+        private final FormattedValue[] formattedValues;
+
+        DecodePlan(EcuRequest request){
+            int size = request.recvbyte_dataitems.size();
+            names = new String[size];
+            datas = new EcuData[size];
+            dataItems = new EcuDataItem[size];
+            wide = new boolean[size];
+            requiredLengths = new int[size];
+            byteOffsets = new int[size];
+            bytesLens = new int[size];
+            firstShifts = new int[size];
+            shiftSteps = new int[size];
+            masks = new long[size];
+            formattedValues = new FormattedValue[size];
+
+            int slot = 0;
+            for (Map.Entry<String, EcuDataItem> entry : request.recvbyte_dataitems.entrySet()){
+                EcuDataItem dataitem = entry.getValue();
+                EcuData ecudata = getData(entry.getKey());
+                int bitscount = ecudata.bitscount;
+                int bitoffset = dataitem.bitoffset & 7;
+                int bytesLen = (bitoffset + bitscount + 7) >> 3;
+                boolean littleEndian = dataitem.isLittleEndian();
+
+                names[slot] = entry.getKey();
+                datas[slot] = ecudata;
+                dataItems[slot] = dataitem;
+                wide[slot] = ecudata.bytesascii || bitscount > 64;
+                requiredLengths[slot] = dataitem.firstbyte - 1 + (bitscount + 7) / 8;
+                byteOffsets[slot] = dataitem.firstbyte - 1 + (dataitem.bitoffset >> 3);
+                bytesLens[slot] = bytesLen;
+                if (littleEndian) {
+                    firstShifts[slot] = -bitoffset;
+                    shiftSteps[slot] = 8;
+                } else {
+                    firstShifts[slot] = (bitoffset + bitscount) - 8;
+                    shiftSteps[slot] = -8;
+                }
+                masks[slot] = bitscount >= 64 ? -1L : (1L << bitscount) - 1;
+                ++slot;
+            }
+        }
+
+        public int size(){
+            return names.length;
+        }
+
+        public String getName(int slot){
+            return names[slot];
+        }
+
+        public EcuData getEcuData(int slot){
+            return datas[slot];
+        }
+
+        /*
+         * Raw value of the item in slot, see EcuData.getRawValue
+         */
+        public long decodeRaw(byte[] resp, int slot){
+            if (wide[slot])
+                return datas[slot].getRawValue(resp, dataItems[slot]);
+            if (requiredLengths[slot] > resp.length)
+                throw new ArrayIndexOutOfBoundsException("Response too short");
+
+            long value = 0;
+            int shift = firstShifts[slot];
+            int step = shiftSteps[slot];
+            for (int i = 0, pos = byteOffsets[slot]; i < bytesLens[slot]; ++i, ++pos, shift += step){
+                long b = resp[pos] & 0xFF;
+                value |= shift >= 0 ? b << shift : b >>> -shift;
+            }
+            return value & masks[slot];
+        }
+
+        public int indexOf(String name){
+            for (int slot = 0; slot < names.length; ++slot){
+                if (names[slot].equals(name))
+                    return slot;
+            }
+            return -1;
+        }
+
+        public String getUnit(int slot){
+            return datas[slot].unit;
+        }
+
+        /*
+         * Decodes all slots of the response into rawValues (at least size() long)
+         */
+        public void decodeRaw(byte[] resp, long[] rawValues){
+            for (int slot = 0; slot < names.length; ++slot){
+                rawValues[slot] = decodeRaw(resp, slot);
+            }
+        }
+
+        public double decodeValue(byte[] resp, int slot){
+            return datas[slot].getNumericValue(decodeRaw(resp, slot));
+        }
+
+        /*
+         * Decodes all slots of the response into values (at least size() double),
+         * scaling is applied, ascii values are set to NaN
+         */
+        public void decodeValues(byte[] resp, double[] values){
+            for (int slot = 0; slot < names.length; ++slot){
+                values[slot] = decodeValue(resp, slot);
+            }
+        }
+
+        /*
+         * Display value of a raw value decoded from slot, the last
+         * formatted value is kept so unchanged values are not formatted again
+         */
+        public String format(int slot, long rawValue){
+            FormattedValue last = formattedValues[slot];
+            if (last != null && last.rawValue == rawValue)
+                return last.text;
+            String text = datas[slot].formatRawValue(rawValue);
+            formattedValues[slot] = new FormattedValue(rawValue, text);
+            return text;
+        }
+
+        public String getDisplayValue(byte[] resp, int slot){
+            if (wide[slot])
+                return datas[slot].getDisplayValue(resp, dataItems[slot]);
+            return format(slot, decodeRaw(resp, slot));
+        }
+    }
+
+    private static class FormattedValue {
+        final long rawValue;
+        final String text;
+
+        FormattedValue(long rawValue, String text){
+            this.rawValue = rawValue;
+            this.text = text;
+        }
     }
 
     public Ecu(InputStream is){
@@ -567,6 +974,67 @@ public class Ecu {
         }
     }
 
+    /*
+     * Reads an Ecu written by writeBinary (see EcuModelCache)
+     */
+    public Ecu(ByteBuffer buffer){
+        m_parsed = true;
+        global_endian = EcuModelCache.readString(buffer);
+        ecu_name = EcuModelCache.readString(buffer);
+        protocol = EcuModelCache.readString(buffer);
+        funcaddr = EcuModelCache.readString(buffer);
+        kw1 = EcuModelCache.readString(buffer);
+        kw2 = EcuModelCache.readString(buffer);
+        ecu_send_id = EcuModelCache.readString(buffer);
+        ecu_recv_id = EcuModelCache.readString(buffer);
+        fastinit = EcuModelCache.readBoolean(buffer);
+        m_defaultSDS = EcuModelCache.readString(buffer);
+
+        int count = buffer.getInt();
+        requests = new HashMap<>(count * 2);
+        for (int i = 0; i < count; ++i){
+            EcuRequest ecureq = new EcuRequest(buffer);
+            requests.put(ecureq.name, ecureq);
+        }
+        count = buffer.getInt();
+        data = new HashMap<>(count * 2);
+        for (int i = 0; i < count; ++i){
+            EcuData ecudata = new EcuData(buffer);
+            data.put(ecudata.name, ecudata);
+        }
+        count = buffer.getInt();
+        sdsrequests = new HashMap<>(count * 2);
+        for (int i = 0; i < count; ++i){
+            String key = EcuModelCache.readString(buffer);
+            sdsrequests.put(key, EcuModelCache.readString(buffer));
+        }
+    }
+
+    public void writeBinary(DataOutputStream out) throws IOException {
+        EcuModelCache.writeString(out, global_endian);
+        EcuModelCache.writeString(out, ecu_name);
+        EcuModelCache.writeString(out, protocol);
+        EcuModelCache.writeString(out, funcaddr);
+        EcuModelCache.writeString(out, kw1);
+        EcuModelCache.writeString(out, kw2);
+        EcuModelCache.writeString(out, ecu_send_id);
+        EcuModelCache.writeString(out, ecu_recv_id);
+        out.writeBoolean(fastinit);
+        EcuModelCache.writeString(out, m_defaultSDS);
+
+        out.writeInt(requests.size());
+        for (EcuRequest ecureq : requests.values())
+            ecureq.writeBinary(out);
+        out.writeInt(data.size());
+        for (EcuData ecudata : data.values())
+            ecudata.writeBinary(out);
+        out.writeInt(sdsrequests.size());
+        for (Map.Entry<String, String> entry : sdsrequests.entrySet()){
+            EcuModelCache.writeString(out, entry.getKey());
+            EcuModelCache.writeString(out, entry.getValue());
+        }
+    }
+
     public EcuData getData(String dataname){
         return data.get(dataname);
     }
@@ -575,6 +1043,14 @@ public class Ecu {
         return requests.get(req_name);
     }
 
+    public DecodePlan getDecodePlan(String req_name){
+        return requests.get(req_name).getDecodePlan();
+    }
+
+    public Set<String> getRequestNames(){
+        return requests.keySet();
+    }
+
     public String getRequestData(byte[] bytes, String requestname, String dataname){
         EcuDataItem dataitem = getRequest(requestname).recvbyte_dataitems.get(dataname);
         EcuData ecudata = getData(dataname);
@@ -602,47 +1078,30 @@ public class Ecu {
     }
 
     public HashMap<String, String> getRequestValues(byte[] bytes, String requestname, boolean with_units){
-        EcuRequest request = getRequest(requestname);
+        DecodePlan plan = getRequest(requestname).getDecodePlan();
         HashMap<String, String> hash = new HashMap<>();
-        Set<String> keys = request.recvbyte_dataitems.keySet();
-        Iterator<String> it = keys.iterator();
-        for (;it.hasNext();){
-            String key = it.next();
-            EcuDataItem dataitem = request.recvbyte_dataitems.get(key);
-            EcuData ecudata = getData(key);
-            if (with_units) {
-                String val = ecudata.getDisplayValueWithUnit(bytes, dataitem);
-                hash.put(key, val);
-            } else {
-                String val = ecudata.getDisplayValue(bytes, dataitem);
-                hash.put(key, val);
-            }
+        for (int slot = 0; slot < plan.size(); ++slot){
+            String val = plan.getDisplayValue(bytes, slot);
+            if (with_units)
+                val = val + " " + plan.getEcuData(slot).unit;
+            hash.put(plan.getName(slot), val);
         }
         return hash;
     }
 
     public HashMap<String, Pair<String, String>> getRequestValuesWithUnit(byte[] bytes, String requestname){
-        EcuRequest request = getRequest(requestname);
+        DecodePlan plan = getRequest(requestname).getDecodePlan();
         HashMap<String, Pair<String, String>> hash = new HashMap<>();
-        Set<String> keys = request.recvbyte_dataitems.keySet();
-        Iterator<String> it = keys.iterator();
-        for (;it.hasNext();){
-            String key = it.next();
-            EcuDataItem dataitem = request.recvbyte_dataitems.get(key);
-            EcuData ecudata = getData(key);
-            String val = ecudata.getDisplayValue(bytes, dataitem);
-            String unit = ecudata.unit;
-            Pair<String, String> pair = new Pair<>(val, unit);
-            hash.put(key, pair);
+        for (int slot = 0; slot < plan.size(); ++slot){
+            String val = plan.getDisplayValue(bytes, slot);
+            Pair<String, String> pair = new Pair<>(val, plan.getEcuData(slot).unit);
+            hash.put(plan.getName(slot), pair);
         }
         return hash;
     }
 
     public static String byteArrayToHex(byte[] a) {
-        StringBuilder sb = new StringBuilder(a.length * 2);
-        for(byte b: a)
-            sb.append(String.format("%02x", b));
-        return sb.toString().toUpperCase();
+        return HexCodec.encode(a);
     }
 
     public byte[] setRequestValues(String requestname, HashMap<String, Object> hash){
@@ -674,6 +1133,10 @@ public class Ecu {
     }
 
     public List<List<String>> decodeDTC(String dtcRequestName, String response){
+        return decodeDTC(dtcRequestName, hexStringToByteArray(response));
+    }
+
+    public List<List<String>> decodeDTC(String dtcRequestName, byte[] bytesResponse){
         List<List<String>> dtcList = new ArrayList<>();
 
         Ecu.EcuRequest dtcRequest = getRequest(dtcRequestName);
@@ -681,7 +1144,6 @@ public class Ecu {
             return dtcList;
 
         int shiftBytesCount = dtcRequest.shiftbytescount;
-        byte[] bytesResponse = hexStringToByteArray(response);
 
         int numDtc = bytesResponse[1] & 0xFF;
 
@@ -716,12 +1178,20 @@ public class Ecu {
         return ecu_name;
     }
 
+    /*
+     * True if the definition was fully read, only parsed definitions are cached
+     */
+    public boolean isParsed(){
+        return m_parsed;
+    }
+
     private void init(JSONObject ecudef){
         requests = new HashMap<>();
         HashMap<String, EcuDevice> devices = new HashMap<>();
         data = new HashMap<>();
         sdsrequests = new HashMap<>();
         m_defaultSDS = "10C0";
+        boolean parsed = false;
 
         try {
             if (ecudef.has("endian")) global_endian = ecudef.getString("endian");
@@ -765,6 +1235,7 @@ public class Ecu {
                 EcuData ecudata = new EcuData(dataobj, key);
                 data.put(key, ecudata);
             }
+            parsed = true;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -802,5 +1273,6 @@ public class Ecu {
                 }
             }
         }
+        m_parsed = parsed;
     }
 }
@@ -2,15 +2,18 @@ package org.quark.dr.ecu;
 
 import android.os.Environment;
 import androidx.annotation.Nullable;
+import android.util.JsonReader;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -24,6 +27,7 @@ public class EcuDatabase {
     private Set<String> m_projectSet;
     private String m_ecuFilePath;
     private ZipFileSystem m_zipFileSystem;
+    private EcuModelCache m_modelCache;
 
     private HashMap<Integer, String> RXADDRMAP, TXADDRMAP;
     private HashMap<String, String> MODELSMAP;
@@ -167,6 +171,8 @@ public class EcuDatabase {
     public ArrayList<EcuInfo> identifyNewEcu(EcuIdentifierNew ecuIdentifer){
         ArrayList<EcuInfo> ecuInfos = m_ecuInfo.get(ecuIdentifer.addr);
         ArrayList<EcuInfo> keptEcus= new ArrayList<>();
+        if (ecuInfos == null)
+            return keptEcus;
         for (EcuInfo ecuInfo : ecuInfos) {
             for (EcuIdent ecuIdent : ecuInfo.ecuIdents) {
                 if (ecuIdent.supplier_code.equals(ecuIdentifer.supplier) &&
@@ -215,6 +221,24 @@ public class EcuDatabase {
         return -1;
     }
 
+    @Nullable
+    public String getFunctionByAddress(int addressId) {
+        return m_ecuAddressing.get(addressId);
+    }
+
+    /*
+     * Addresses of the loaded ECUs reachable on CAN (known rx and tx ids), sorted
+     */
+    public ArrayList<Integer> getCanAddresses() {
+        ArrayList<Integer> addresses = new ArrayList<>();
+        for (Integer addressId : m_ecuAddressing.keySet()) {
+            if (RXADDRMAP.containsKey(addressId) && TXADDRMAP.containsKey(addressId))
+                addresses.add(addressId);
+        }
+        Collections.sort(addresses);
+        return addresses;
+    }
+
     public EcuDatabase() {
         m_loaded = false;
         m_ecuInfo = new HashMap<>();
@@ -333,7 +357,6 @@ public class EcuDatabase {
             throw new DatabaseException("Ecu file (ecu.zip) not found");
         }
 
-        String bytes;
         m_ecuFilePath = ecuFilename;
         String indexFileName = appDir + "/ecu.idx";
 
@@ -345,79 +368,54 @@ public class EcuDatabase {
         long indexTimeStamp = indexFile.lastModified();
         long ecuTimeStamp = ecuFile.lastModified();
         m_zipFileSystem = new ZipFileSystem(m_ecuFilePath, appDir);
+        m_modelCache = new EcuModelCache(appDir, m_ecuFilePath);
 
         /*
          * If index is already made, use it
          * Also check files exists and timestamps to force [re]scan
          */
-        if (indexFile.exists() && (indexTimeStamp > ecuTimeStamp) && m_zipFileSystem.importZipEntries()){
-            bytes = m_zipFileSystem.getZipFile("db.json");
-            if (bytes.isEmpty()){
-                throw new DatabaseException("Database (db.json) file not found");
-            }
-        } else {
+        if (!(indexFile.exists() && (indexTimeStamp > ecuTimeStamp) && m_zipFileSystem.importZipEntries())){
             /*
              * Else create it
              */
             m_zipFileSystem.getZipEntries();
             m_zipFileSystem.exportZipEntries();
-            bytes = m_zipFileSystem.getZipFile("db.json");
-            if (bytes.isEmpty()){
-                throw new DatabaseException("Database (db.json) file not found");
-            }
         }
-
-        JSONObject jsonRootObject;
-        try {
-            jsonRootObject = new JSONObject(bytes);
-        } catch (Exception e) {
-            throw new DatabaseException("JSON conversion issue");
+        if (!m_zipFileSystem.fileExists("db.json")){
+            throw new DatabaseException("Database (db.json) file not found");
         }
 
         m_projectSet = new HashSet<>();
         Set<Integer> addressSet = new HashSet<>();
-        Iterator<String> keys = jsonRootObject.keys();
-        for (; keys.hasNext(); ) {
-            String href = keys.next();
-            try {
-                JSONObject ecuJsonObject = jsonRootObject.getJSONObject(href);
-                JSONArray projectJsonObject = ecuJsonObject.getJSONArray("projects");
-                Set<String> projectsSet = new HashSet<>();
-                for (int i = 0; i < projectJsonObject.length(); ++i) {
-                    String project = projectJsonObject.getString(i);
-                    String upperCaseProject = project.toUpperCase();
-                    projectsSet.add(upperCaseProject);
-                    m_projectSet.add(upperCaseProject);
-                }
-                int addrId = Integer.parseInt(ecuJsonObject.getString("address"), 16);
-                addressSet.add(addrId);
-                EcuInfo info = new EcuInfo();
-                info.ecuName = ecuJsonObject.getString("ecuname");
-                info.href = href;
-                info.projects = projectsSet;
-                info.addressId = addrId;
-                info.protocol = ecuJsonObject.getString("protocol");
-                JSONArray jsAutoIdents = ecuJsonObject.getJSONArray("autoidents");
-                info.ecuIdents = new EcuIdent[jsAutoIdents.length()];
-                for (int i = 0; i < jsAutoIdents.length(); ++i) {
-                    JSONObject jsAutoIdent = jsAutoIdents.getJSONObject(i);
-                    info.ecuIdents[i] = new EcuIdent();
-                    info.ecuIdents[i].soft_version = jsAutoIdent.getString("soft_version");
-                    info.ecuIdents[i].supplier_code = jsAutoIdent.getString("supplier_code");
-                    info.ecuIdents[i].version = jsAutoIdent.getString("version");
-                    info.ecuIdents[i].diagnostic_version = jsAutoIdent.getString("diagnostic_version");
-                }
+        InputStream dbStream = null;
+        try {
+            dbStream = m_zipFileSystem.getZipFileAsStream("db.json");
+            JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(dbStream, "UTF-8"), 16384));
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                EcuInfo info = readEcuInfo(reader.nextName(), reader);
+                addressSet.add(info.addressId);
                 ArrayList<EcuInfo> ecuList;
-                if (!m_ecuInfo.containsKey(addrId)) {
+                if (!m_ecuInfo.containsKey(info.addressId)) {
                     ecuList = new ArrayList<>();
-                    m_ecuInfo.put(addrId, ecuList);
+                    m_ecuInfo.put(info.addressId, ecuList);
                 } else {
-                    ecuList = m_ecuInfo.get(addrId);
+                    ecuList = m_ecuInfo.get(info.addressId);
                 }
                 ecuList.add(info);
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new DatabaseException("JSON parsing issue");
+            }
+            reader.endObject();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new DatabaseException("JSON parsing issue");
+        } finally {
+            if (dbStream != null) {
+                try {
+                    dbStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
         }
 
@@ -433,6 +431,78 @@ public class EcuDatabase {
         return ecuFilename;
     }
 
+    /*
+     * Reads one db.json entry, the reader is positioned on its value
+     */
+    private EcuInfo readEcuInfo(String href, JsonReader reader) throws IOException {
+        EcuInfo info = new EcuInfo();
+        info.href = href;
+        info.projects = new HashSet<>();
+        String address = null;
+        ArrayList<EcuIdent> ecuIdents = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (key.equals("projects")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String upperCaseProject = reader.nextString().toUpperCase();
+                    info.projects.add(upperCaseProject);
+                    m_projectSet.add(upperCaseProject);
+                }
+                reader.endArray();
+            } else if (key.equals("address")) {
+                address = reader.nextString();
+            } else if (key.equals("ecuname")) {
+                info.ecuName = reader.nextString();
+            } else if (key.equals("protocol")) {
+                info.protocol = reader.nextString();
+            } else if (key.equals("autoidents")) {
+                ecuIdents = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    ecuIdents.add(readEcuIdent(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (address == null || info.ecuName == null || info.protocol == null || ecuIdents == null)
+            throw new IOException("Incomplete database entry " + href);
+        info.addressId = Integer.parseInt(address, 16);
+        info.ecuIdents = ecuIdents.toArray(new EcuIdent[ecuIdents.size()]);
+        return info;
+    }
+
+    private EcuIdent readEcuIdent(JsonReader reader) throws IOException {
+        EcuIdent ecuIdent = new EcuIdent();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (key.equals("soft_version")) {
+                ecuIdent.soft_version = reader.nextString();
+            } else if (key.equals("supplier_code")) {
+                ecuIdent.supplier_code = reader.nextString();
+            } else if (key.equals("version")) {
+                ecuIdent.version = reader.nextString();
+            } else if (key.equals("diagnostic_version")) {
+                ecuIdent.diagnostic_version = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (ecuIdent.soft_version == null || ecuIdent.supplier_code == null
+                || ecuIdent.version == null || ecuIdent.diagnostic_version == null)
+            throw new IOException("Incomplete ECU identification");
+        return ecuIdent;
+    }
+
     public boolean isLoaded() {
         return m_loaded;
     }
@@ -462,6 +532,32 @@ public class EcuDatabase {
         return m_zipFileSystem.getZipFile(filePath);
     }
 
+    /*
+     * Parsed ECU definition, from the binary cache when available
+     */
+    public Ecu getEcu(String ecuName){
+        Ecu ecu = m_modelCache.loadEcu(ecuName);
+        if (ecu == null) {
+            ecu = new Ecu(getZipFile(ecuName));
+            if (ecu.isParsed())
+                m_modelCache.storeEcu(ecuName, ecu);
+        }
+        return ecu;
+    }
+
+    /*
+     * Parsed layout definition, from the binary cache when available
+     */
+    public Layout getLayout(String layoutName){
+        Layout layout = m_modelCache.loadLayout(layoutName);
+        if (layout == null) {
+            layout = new Layout(getZipFile(layoutName));
+            if (layout.isParsed())
+                m_modelCache.storeLayout(layoutName, layout);
+        }
+        return layout;
+    }
+
     private void buildMaps(){
         String[] RXS = RXAT.replace(" ", "").split(",");
         String[] TXS = TXAT.replace(" ", "").split(",");
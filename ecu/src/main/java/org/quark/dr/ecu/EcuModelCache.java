@@ -0,0 +1,184 @@
+package org.quark.dr.ecu;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/*
+ * Binary cache of parsed Ecu and Layout definitions
+ * Each definition is stored in its own file in appDir/ecucache, the file is
+ * memory mapped when loaded. Cache files older than ecu.zip are ignored
+ * (same check as the ecu.idx index)
+ */
+public class EcuModelCache {
+    private static final String TAG = "EcuModelCache";
+    private static final int MAGIC = 0x45434d43; // ECMC
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File m_cacheDir;
+    private long m_ecuTimeStamp;
+
+    public EcuModelCache(String appDir, String ecuFilePath){
+        m_cacheDir = new File(appDir, "ecucache");
+        m_ecuTimeStamp = new File(ecuFilePath).lastModified();
+    }
+
+    private File getCacheFile(String name, String suffix){
+        StringBuilder sb = new StringBuilder(name.length() + suffix.length());
+        for (int i = 0; i < name.length(); ++i){
+            char c = name.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-')
+                sb.append(c);
+            else
+                sb.append('_');
+        }
+        return new File(m_cacheDir, sb.append(suffix).toString());
+    }
+
+    /*
+     * Maps the cache file and checks its header,
+     * returns null if the file is missing or outdated
+     */
+    private ByteBuffer mapCacheFile(File file, String name){
+        if (!file.exists() || file.lastModified() <= m_ecuTimeStamp)
+            return null;
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            ByteBuffer buffer;
+            try {
+                FileChannel channel = raf.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !name.equals(readString(buffer)))
+                return null;
+            return buffer;
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot read cache file " + file.getName());
+            return null;
+        }
+    }
+
+    private DataOutputStream createCacheFile(File tmpFile, String name) throws IOException {
+        if (!m_cacheDir.exists() && !m_cacheDir.mkdirs())
+            throw new IOException("Cannot create cache directory");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, name);
+        return out;
+    }
+
+    private void commitCacheFile(File tmpFile, File file){
+        if (!tmpFile.renameTo(file)) {
+            Log.e(TAG, "Cannot write cache file " + file.getName());
+            tmpFile.delete();
+        }
+    }
+
+    public Ecu loadEcu(String name){
+        File file = getCacheFile(name, ".ecu");
+        ByteBuffer buffer = mapCacheFile(file, name);
+        if (buffer == null)
+            return null;
+        try {
+            return new Ecu(buffer);
+        } catch (Exception e) {
+            Log.e(TAG, "Invalid cache file " + file.getName());
+            file.delete();
+            return null;
+        }
+    }
+
+    public void storeEcu(String name, Ecu ecu){
+        File file = getCacheFile(name, ".ecu");
+        File tmpFile = getCacheFile(name, ".ecu.tmp");
+        try {
+            DataOutputStream out = createCacheFile(tmpFile, name);
+            try {
+                ecu.writeBinary(out);
+            } finally {
+                out.close();
+            }
+            commitCacheFile(tmpFile, file);
+        } catch (IOException | RuntimeException e) {
+            // Incomplete model or write error, nothing is cached
+            Log.e(TAG, "Cannot write cache file " + file.getName());
+            tmpFile.delete();
+        }
+    }
+
+    public Layout loadLayout(String name){
+        File file = getCacheFile(name, ".lay");
+        ByteBuffer buffer = mapCacheFile(file, name);
+        if (buffer == null)
+            return null;
+        try {
+            return new Layout(buffer);
+        } catch (Exception e) {
+            Log.e(TAG, "Invalid cache file " + file.getName());
+            file.delete();
+            return null;
+        }
+    }
+
+    public void storeLayout(String name, Layout layout){
+        File file = getCacheFile(name, ".lay");
+        File tmpFile = getCacheFile(name, ".lay.tmp");
+        try {
+            DataOutputStream out = createCacheFile(tmpFile, name);
+            try {
+                layout.writeBinary(out);
+            } finally {
+                out.close();
+            }
+            commitCacheFile(tmpFile, file);
+        } catch (IOException | RuntimeException e) {
+            // Incomplete model or write error, nothing is cached
+            Log.e(TAG, "Cannot write cache file " + file.getName());
+            tmpFile.delete();
+        }
+    }
+
+    /*
+     * String helpers shared by the model classes, null strings are stored with a -1 length
+     */
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buffer){
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        if (buffer.hasArray()) {
+            String str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+            buffer.position(buffer.position() + length);
+            return str;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    static boolean readBoolean(ByteBuffer buffer){
+        return buffer.get() != 0;
+    }
+}
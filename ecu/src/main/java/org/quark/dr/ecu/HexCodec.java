@@ -0,0 +1,142 @@
+package org.quark.dr.ecu;
+
+/*
+ * Table driven hexadecimal codec
+ * Encoding writes upper case digits into a char[] or a StringBuilder,
+ * decoding and validation use a lookup table indexed by the character and
+ * can write into a caller buffer
+ */
+
+public final class HexCodec {
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+    // Digit value of each ASCII character, -1 if not hexadecimal
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; ++i)
+            VALUES[i] = -1;
+        for (int i = 0; i < 10; ++i)
+            VALUES['0' + i] = (byte) i;
+        for (int i = 0; i < 6; ++i) {
+            VALUES['A' + i] = (byte) (10 + i);
+            VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private HexCodec(){
+    }
+
+    /*
+     * Value of a hexadecimal digit, -1 if c is not one
+     */
+    public static int digit(char c){
+        return c < 128 ? VALUES[c] : -1;
+    }
+
+    public static boolean isHexadecimal(CharSequence text){
+        for (int i = 0, len = text.length(); i < len; ++i) {
+            char c = text.charAt(i);
+            if (c >= 128 || VALUES[c] < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Writes the 2 * length digits of bytes into dest, returns the index after them
+     */
+    public static int encode(byte[] bytes, int offset, int length, char[] dest, int destOffset){
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            int b = bytes[i];
+            dest[destOffset++] = DIGITS[(b >> 4) & 0xF];
+            dest[destOffset++] = DIGITS[b & 0xF];
+        }
+        return destOffset;
+    }
+
+    public static void append(StringBuilder sb, byte[] bytes, int offset, int length){
+        sb.ensureCapacity(sb.length() + length * 2);
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            int b = bytes[i];
+            sb.append(DIGITS[(b >> 4) & 0xF]);
+            sb.append(DIGITS[b & 0xF]);
+        }
+    }
+
+    public static void append(StringBuilder sb, int b){
+        sb.append(DIGITS[(b >> 4) & 0xF]);
+        sb.append(DIGITS[b & 0xF]);
+    }
+
+    public static String encode(byte[] bytes, int offset, int length){
+        char[] chars = new char[length * 2];
+        encode(bytes, offset, length, chars, 0);
+        return new String(chars);
+    }
+
+    public static String encode(byte[] bytes){
+        return encode(bytes, 0, bytes.length);
+    }
+
+    /*
+     * Decodes text[start, end) into dest, returns the number of bytes written
+     * or -1 if the text has an odd length, a non hexadecimal character or
+     * does not fit
+     */
+    public static int decode(CharSequence text, int start, int end, byte[] dest, int destOffset){
+        int count = (end - start) / 2;
+        if (((end - start) & 1) != 0 || count > dest.length - destOffset)
+            return -1;
+        for (int i = start; i < end; i += 2) {
+            char high = text.charAt(i);
+            char low = text.charAt(i + 1);
+            if (high >= 128 || low >= 128)
+                return -1;
+            int h = VALUES[high];
+            int l = VALUES[low];
+            if ((h | l) < 0)
+                return -1;
+            dest[destOffset++] = (byte) ((h << 4) | l);
+        }
+        return count;
+    }
+
+    /*
+     * Decodes text, spaces are skipped
+     * Throws NumberFormatException if it is not an even number of hexadecimal digits
+     */
+    public static byte[] decode(CharSequence text){
+        int len = text.length();
+        int digits = 0;
+        for (int i = 0; i < len; ++i) {
+            if (text.charAt(i) != ' ')
+                ++digits;
+        }
+        if ((digits & 1) != 0)
+            throw new NumberFormatException("Odd hex length : " + text);
+
+        byte[] bytes = new byte[digits / 2];
+        if (digits == len) {
+            if (decode(text, 0, len, bytes, 0) < 0)
+                throw new NumberFormatException("Invalid hex value : " + text);
+            return bytes;
+        }
+
+        int high = -1;
+        for (int i = 0, j = 0; i < len; ++i) {
+            char c = text.charAt(i);
+            if (c == ' ')
+                continue;
+            int value = digit(c);
+            if (value < 0)
+                throw new NumberFormatException("Invalid hex value : " + text);
+            if (high < 0) {
+                high = value;
+            } else {
+                bytes[j++] = (byte) ((high << 4) | value);
+                high = -1;
+            }
+        }
+        return bytes;
+    }
+}
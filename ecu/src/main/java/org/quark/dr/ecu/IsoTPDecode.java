@@ -4,89 +4,89 @@ import java.util.ArrayList;
 
 /*
  * Class to decode a CAN frame (single or multi line)
+ * String adapter of IsoTPReassembler, frames are hexadecimal lines
  */
 
 public class IsoTPDecode {
     private final ArrayList<String> responses;
+    private final IsoTPReassembler reassembler;
 
     public IsoTPDecode(ArrayList<String> mess){
+        this(mess, new IsoTPReassembler());
+    }
+
+    /*
+     * The reassembler can be reused from one response to the other
+     */
+    public IsoTPDecode(ArrayList<String> mess, IsoTPReassembler isoTPReassembler){
         responses = mess;
+        reassembler = isoTPReassembler;
     }
 
     public static boolean isHexadecimal(String text) {
-        char[] hexDigits = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
-                'a', 'b', 'c', 'd', 'e', 'f', 'A', 'B', 'C', 'D', 'E', 'F' };
-
-        for (char symbol : text.toCharArray()) {
-            boolean found = false;
-            for (char hexDigit : hexDigits) {
-                if (symbol == hexDigit) {
-                    found = true;
-                    break;
-                }
-            }
-            if(!found)
-                return false;
-        }
-        return true;
+        return HexCodec.isHexadecimal(text);
     }
 
-    public String decodeCan(){
-        String result;
-        int cframe = 0;
-        int nbytes = 0;
-
+    /*
+     * Reassembles the frames into the reassembler payload,
+     * returns null on success or the error message
+     * A "response pending" negative response (7F xx 78) followed by other
+     * frames is skipped
+     */
+    public String reassemble(){
+        reassembler.reset();
         if (responses.size() == 0)
             return "ERROR : NO DATA";
 
-        if (responses.size() == 1){
-            String line = responses.get(0);
-            if (!isHexadecimal(line)){
+        int maxLength = IsoTPSegmenter.FRAME_SIZE;
+        for (String line : responses)
+            maxLength = Math.max(maxLength, line.length() / 2);
+        byte[] frame = new byte[maxLength];
+
+        for (int i = 0; i < responses.size(); ++i){
+            String line = responses.get(i);
+            int length = HexCodec.decode(line, 0, line.length(), frame, 0);
+            if (length < 0)
                 return "ERROR : NON HEXA";
-            }
-            if (line.charAt(0) == '0') {
-                String nbytes_hex = responses.get(0).substring(1,2);
-                nbytes = Integer.parseInt(nbytes_hex, 16);
-                result = line.substring(2, 2 + nbytes * 2);
-            } else {
-                result = "ERROR : BAD CAN FORMAT (SINGLE LINE)";
-            }
-        } else {
-            if (responses.get(0).charAt(0) == '1'){
-                String line = responses.get(0);
-                if (!isHexadecimal(line)){
-                    return "ERROR : NON HEXA";
-                }
-                String nbytes_hex = line.substring(1,4);
-                nbytes = Integer.parseInt(nbytes_hex, 16);
-                cframe = 1;
-                result = line.substring(4,16);
-            } else {
-                result = "ERROR : BAD CAN FORMAT (MULTILINE)";
-            }
 
-            responses.remove(0);
-            for (String fr: responses){
-                if (!isHexadecimal(fr)){
-                    return "ERROR : NON HEXA";
-                }
-                if (fr.charAt(0) == '2'){
-                    int tmp_fn = Integer.parseInt(fr.substring(1,2), 16);
-                    if (tmp_fn != (cframe % 16)){
-                        result = "ERROR : BAD CFC";
-                        break;
-                    }
-                    cframe += 1;
-                    result += fr.substring(2, (Math.min(fr.length(), 16)));
-                } else {
-                    result = "ERROR : BAD CAN FORMAT";
+            int status = reassembler.addFrame(frame, 0, length);
+            if (status == IsoTPReassembler.STATUS_COMPLETE){
+                byte[] payload = reassembler.getPayload();
+                if (i < responses.size() - 1 && reassembler.getLength() == 3
+                        && payload[0] == 0x7F && payload[2] == 0x78){
+                    reassembler.reset();
+                    continue;
                 }
+                // Trailing frames are ignored
+                return null;
             }
+            if (status != IsoTPReassembler.STATUS_INCOMPLETE)
+                return getErrorMessage(status);
+        }
+        return getErrorMessage(reassembler.finish());
+    }
+
+    private static String getErrorMessage(int status){
+        switch (status){
+            case IsoTPReassembler.STATUS_COMPLETE:
+                return null;
+            case IsoTPReassembler.ERROR_BAD_SINGLE_FRAME:
+                return "ERROR : BAD CAN FORMAT (SINGLE LINE)";
+            case IsoTPReassembler.ERROR_BAD_FIRST_FRAME:
+                return "ERROR : BAD CAN FORMAT (MULTILINE)";
+            case IsoTPReassembler.ERROR_BAD_SEQUENCE:
+                return "ERROR : BAD CFC";
+            case IsoTPReassembler.ERROR_TOO_SHORT:
+                return "ERROR : RESPONSE TOO SHORT";
+            default:
+                return "ERROR : BAD CAN FORMAT";
         }
-        if (result.length() >= nbytes*2)
-            result = result.substring(0, nbytes*2);
-        else
-            result = "ERROR : RESPONSE TOO SHORT (" + result + ")";
-        return result;
+    }
+
+    public String decodeCan(){
+        String error = reassemble();
+        if (error != null)
+            return error;
+        return Ecu.byteArrayToHex(reassembler.toByteArray());
     }
 }
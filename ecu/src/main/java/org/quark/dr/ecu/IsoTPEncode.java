@@ -4,6 +4,7 @@ import java.util.ArrayList;
 
 /*
  * Class to format a CAN message to single/multi line frame
+ * String adapter of IsoTPSegmenter, frames are hexadecimal lines
  */
 
 public class IsoTPEncode {
@@ -24,8 +25,7 @@ public class IsoTPEncode {
 
     public ArrayList<String> getFormattedArray(){
         ArrayList<String> raw_command = new ArrayList<>();
-        String message = mmessage;
-        message = message.replace(" ", "");
+        String message = mmessage.replace(" ", "");
         if (!IsoTPDecode.isHexadecimal(message)){
             return raw_command;
         }
@@ -33,20 +33,17 @@ public class IsoTPEncode {
         if ( (message.length() % 2) != 0 )
             return raw_command;
 
-        int cmd_len = message.length() / 2;
-        if (cmd_len < 8){
-            raw_command.add(String.format("%02X", cmd_len) + message);
-        } else {
-            int frame_number = 1;
-            String header = "1" + String.format("%03X", cmd_len);
-            raw_command.add(header.substring(0,3) + message.substring(0,12));
-            message = message.substring(12);
-            while (message.length() > 0){
-                header = "2" + String.format("%X", frame_number++);
-                int remaining_len = message.length();
-                raw_command.add(header + message.substring( 0, (Math.min(remaining_len, 14)) ) );
-                message = message.substring( (Math.min(remaining_len, 14)) );
-            }
+        byte[] payload = Ecu.hexStringToByteArray(message);
+        if (payload.length > IsoTPSegmenter.MAX_LENGTH)
+            return raw_command;
+
+        byte[] frame = new byte[IsoTPSegmenter.FRAME_SIZE];
+        char[] chars = new char[IsoTPSegmenter.FRAME_SIZE * 2];
+        int count = IsoTPSegmenter.getFrameCount(payload.length);
+        for (int i = 0; i < count; ++i){
+            int length = IsoTPSegmenter.getFrame(payload, 0, payload.length, i, frame);
+            HexCodec.encode(frame, 0, length, chars, 0);
+            raw_command.add(new String(chars, 0, length * 2));
         }
 
         return raw_command;
@@ -0,0 +1,125 @@
+package org.quark.dr.ecu;
+
+import java.util.Arrays;
+
+/*
+ * ISO 15765-2 reassembly of the CAN frames of a response into a preallocated
+ * payload buffer
+ * Flow control frames must be filtered out by the caller, consecutive frames
+ * are checked against the expected sequence number (wrapping from F to 0)
+ * and the payload length announced by the first frame
+ */
+
+public class IsoTPReassembler {
+    public static final int STATUS_INCOMPLETE = 0;
+    public static final int STATUS_COMPLETE = 1;
+    public static final int ERROR_BAD_SINGLE_FRAME = -1;
+    public static final int ERROR_BAD_FIRST_FRAME = -2;
+    public static final int ERROR_BAD_CONSECUTIVE_FRAME = -3;
+    public static final int ERROR_BAD_SEQUENCE = -4;
+    public static final int ERROR_TOO_SHORT = -5;
+    public static final int ERROR_UNEXPECTED_FRAME = -6;
+
+    private final byte[] mPayload = new byte[IsoTPSegmenter.MAX_LENGTH];
+    private int mLength;
+    private int mReceived;
+    private int mSequence;
+    private int mStatus;
+
+    public IsoTPReassembler(){
+        reset();
+    }
+
+    public void reset(){
+        mLength = 0;
+        mReceived = 0;
+        mSequence = 0;
+        mStatus = STATUS_INCOMPLETE;
+    }
+
+    /*
+     * Adds the next frame of the response, returns the status (STATUS_INCOMPLETE
+     * while consecutive frames are expected, STATUS_COMPLETE or an error)
+     * Bytes after the announced length (padding) are ignored
+     */
+    public int addFrame(byte[] frame, int offset, int length){
+        if (mStatus != STATUS_INCOMPLETE)
+            return mStatus = ERROR_UNEXPECTED_FRAME;
+        if (length < 1)
+            return mStatus = ERROR_TOO_SHORT;
+
+        int pci = frame[offset] & 0xFF;
+        int type = pci >> 4;
+
+        if (mLength == 0){
+            if (type == 0){
+                // Single frame
+                int count = pci & 0xF;
+                if (count > IsoTPSegmenter.MAX_SINGLE_FRAME_LENGTH)
+                    return mStatus = ERROR_BAD_SINGLE_FRAME;
+                if (length - 1 < count)
+                    return mStatus = ERROR_TOO_SHORT;
+                System.arraycopy(frame, offset + 1, mPayload, 0, count);
+                mLength = mReceived = count;
+                return mStatus = STATUS_COMPLETE;
+            }
+            if (type == 1){
+                if (length < 2)
+                    return mStatus = ERROR_TOO_SHORT;
+                int total = ((pci & 0xF) << 8) | (frame[offset + 1] & 0xFF);
+                // Escape sequence (length > 4095) is not supported
+                if (total <= IsoTPSegmenter.MAX_SINGLE_FRAME_LENGTH)
+                    return mStatus = ERROR_BAD_FIRST_FRAME;
+                int count = Math.min(Math.min(6, length - 2), total);
+                System.arraycopy(frame, offset + 2, mPayload, 0, count);
+                mLength = total;
+                mReceived = count;
+                mSequence = 1;
+                return mStatus;
+            }
+            return mStatus = type == 2 ? ERROR_BAD_FIRST_FRAME : ERROR_BAD_SINGLE_FRAME;
+        }
+
+        if (type != 2)
+            return mStatus = ERROR_BAD_CONSECUTIVE_FRAME;
+        if ((pci & 0xF) != mSequence)
+            return mStatus = ERROR_BAD_SEQUENCE;
+        mSequence = (mSequence + 1) & 0xF;
+
+        int count = Math.min(Math.min(7, length - 1), mLength - mReceived);
+        System.arraycopy(frame, offset + 1, mPayload, mReceived, count);
+        mReceived += count;
+        if (mReceived == mLength)
+            mStatus = STATUS_COMPLETE;
+        return mStatus;
+    }
+
+    /*
+     * Status after the last frame, a response ending while consecutive frames
+     * are still expected is too short
+     */
+    public int finish(){
+        if (mStatus == STATUS_INCOMPLETE)
+            mStatus = ERROR_TOO_SHORT;
+        return mStatus;
+    }
+
+    public int getStatus(){
+        return mStatus;
+    }
+
+    /*
+     * Payload buffer, valid up to getLength() once complete
+     */
+    public byte[] getPayload(){
+        return mPayload;
+    }
+
+    public int getLength(){
+        return mStatus == STATUS_COMPLETE ? mLength : mReceived;
+    }
+
+    public byte[] toByteArray(){
+        return Arrays.copyOf(mPayload, getLength());
+    }
+}
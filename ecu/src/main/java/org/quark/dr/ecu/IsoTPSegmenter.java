@@ -0,0 +1,54 @@
+package org.quark.dr.ecu;
+
+/*
+ * ISO 15765-2 segmentation of a payload into CAN frames (8 bytes, no padding)
+ * single frame : 0L + up to 7 bytes
+ * first frame : 1LLL + 6 bytes
+ * consecutive frames : 2N + up to 7 bytes, N wraps from F to 0
+ */
+
+public class IsoTPSegmenter {
+    public static final int FRAME_SIZE = 8;
+    public static final int MAX_SINGLE_FRAME_LENGTH = 7;
+    public static final int MAX_LENGTH = 0xFFF;
+
+    /*
+     * Number of frames needed by a payload of length bytes
+     */
+    public static int getFrameCount(int length){
+        if (length < 0 || length > MAX_LENGTH)
+            throw new IllegalArgumentException("Bad ISO-TP payload length " + length);
+        if (length <= MAX_SINGLE_FRAME_LENGTH)
+            return 1;
+        // First frame + ceil((length - 6) / 7) consecutive frames
+        return 1 + length / 7;
+    }
+
+    /*
+     * Writes the frame index of the payload into frame (at least FRAME_SIZE bytes)
+     * and returns its length
+     */
+    public static int getFrame(byte[] payload, int offset, int length, int index, byte[] frame){
+        if (index < 0 || index >= getFrameCount(length))
+            throw new IndexOutOfBoundsException("Bad ISO-TP frame index " + index);
+
+        if (length <= MAX_SINGLE_FRAME_LENGTH){
+            frame[0] = (byte) length;
+            System.arraycopy(payload, offset, frame, 1, length);
+            return length + 1;
+        }
+
+        if (index == 0){
+            frame[0] = (byte) (0x10 | (length >> 8));
+            frame[1] = (byte) length;
+            System.arraycopy(payload, offset, frame, 2, 6);
+            return FRAME_SIZE;
+        }
+
+        int position = 6 + (index - 1) * 7;
+        int count = Math.min(7, length - position);
+        frame[0] = (byte) (0x20 | (index & 0xF));
+        System.arraycopy(payload, offset + position, frame, 1, count);
+        return count + 1;
+    }
+}
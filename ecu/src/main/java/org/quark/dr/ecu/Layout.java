@@ -6,19 +6,25 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class Layout {
     public HashMap<String, ScreenData> m_screens;
     HashMap<String, ArrayList<String>> m_categories;
+    // False if the screens could not be read
+    private boolean m_parsed;
 
     private static class ListComparator implements Comparator {
 
@@ -55,6 +61,18 @@ public class Layout {
             }
         }
 
+        Color(ByteBuffer buffer){
+            r = buffer.getInt();
+            g = buffer.getInt();
+            b = buffer.getInt();
+        }
+
+        void writeBinary(DataOutputStream out) throws IOException {
+            out.writeInt(r);
+            out.writeInt(g);
+            out.writeInt(b);
+        }
+
         public int get(){
             return 255 << 24 | r << 16 | g << 8 | b;
         }
@@ -75,6 +93,18 @@ public class Layout {
                 e.printStackTrace();
             }
         }
+
+        Font(ByteBuffer buffer){
+            name = EcuModelCache.readString(buffer);
+            size = buffer.getInt();
+            color = readColor(buffer);
+        }
+
+        void writeBinary(DataOutputStream out) throws IOException {
+            EcuModelCache.writeString(out, name);
+            out.writeInt(size);
+            writeColor(out, color);
+        }
     }
 
     public static class Rect {
@@ -90,6 +120,76 @@ public class Layout {
                 e.printStackTrace();
             }
         }
+
+        Rect(ByteBuffer buffer){
+            x = buffer.getInt();
+            y = buffer.getInt();
+            w = buffer.getInt();
+            h = buffer.getInt();
+            area = buffer.getInt();
+        }
+
+        void writeBinary(DataOutputStream out) throws IOException {
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeInt(w);
+            out.writeInt(h);
+            out.writeInt(area);
+        }
+    }
+
+    /*
+     * Binary helpers for optional members (see EcuModelCache)
+     */
+    static Color readColor(ByteBuffer buffer){
+        return EcuModelCache.readBoolean(buffer) ? new Color(buffer) : null;
+    }
+
+    static void writeColor(DataOutputStream out, Color color) throws IOException {
+        out.writeBoolean(color != null);
+        if (color != null) color.writeBinary(out);
+    }
+
+    static Font readFont(ByteBuffer buffer){
+        return EcuModelCache.readBoolean(buffer) ? new Font(buffer) : null;
+    }
+
+    static void writeFont(DataOutputStream out, Font font) throws IOException {
+        out.writeBoolean(font != null);
+        if (font != null) font.writeBinary(out);
+    }
+
+    static Rect readRect(ByteBuffer buffer){
+        return EcuModelCache.readBoolean(buffer) ? new Rect(buffer) : null;
+    }
+
+    static void writeRect(DataOutputStream out, Rect rect) throws IOException {
+        out.writeBoolean(rect != null);
+        if (rect != null) rect.writeBinary(out);
+    }
+
+    static ArrayList<Pair<Integer, String>> readSendData(ByteBuffer buffer){
+        int count = buffer.getInt();
+        if (count < 0)
+            return null;
+        ArrayList<Pair<Integer, String>> sendData = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i){
+            int delay = buffer.getInt();
+            sendData.add(new Pair<>(delay, EcuModelCache.readString(buffer)));
+        }
+        return sendData;
+    }
+
+    static void writeSendData(DataOutputStream out, ArrayList<Pair<Integer, String>> sendData) throws IOException {
+        if (sendData == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(sendData.size());
+        for (Pair<Integer, String> pair : sendData){
+            out.writeInt(pair.first);
+            EcuModelCache.writeString(out, pair.second);
+        }
     }
 
     public static class InputData {
@@ -245,6 +345,112 @@ public class Layout {
             }
         }
 
+        ScreenData(ByteBuffer buffer){
+            m_screen_name = EcuModelCache.readString(buffer);
+            m_width = buffer.getInt();
+            m_height = buffer.getInt();
+            m_color = readColor(buffer);
+            preSendData = readSendData(buffer);
+
+            int count = buffer.getInt();
+            m_inputs = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                InputData data = new InputData();
+                data.text = EcuModelCache.readString(buffer);
+                data.request = EcuModelCache.readString(buffer);
+                data.width = buffer.getInt();
+                data.rect = readRect(buffer);
+                data.font = readFont(buffer);
+                data.color = readColor(buffer);
+                m_inputs.add(data);
+            }
+
+            count = buffer.getInt();
+            m_displays = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                DisplayData data = new DisplayData();
+                data.text = EcuModelCache.readString(buffer);
+                data.request = EcuModelCache.readString(buffer);
+                data.width = buffer.getInt();
+                data.rect = readRect(buffer);
+                data.font = readFont(buffer);
+                data.color = readColor(buffer);
+                m_displays.add(data);
+            }
+
+            count = buffer.getInt();
+            m_labels = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                LabelData data = new LabelData();
+                data.text = EcuModelCache.readString(buffer);
+                data.rect = readRect(buffer);
+                data.font = readFont(buffer);
+                data.alignment = buffer.getInt();
+                data.color = readColor(buffer);
+                data.fontcolor = readColor(buffer);
+                m_labels.add(data);
+            }
+
+            count = buffer.getInt();
+            m_buttons = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                ButtonData data = new ButtonData();
+                data.text = EcuModelCache.readString(buffer);
+                data.uniqueName = EcuModelCache.readString(buffer);
+                data.rect = readRect(buffer);
+                data.font = readFont(buffer);
+                data.sendData = readSendData(buffer);
+                m_buttons.add(data);
+            }
+        }
+
+        void writeBinary(DataOutputStream out) throws IOException {
+            EcuModelCache.writeString(out, m_screen_name);
+            out.writeInt(m_width);
+            out.writeInt(m_height);
+            writeColor(out, m_color);
+            writeSendData(out, preSendData);
+
+            out.writeInt(m_inputs.size());
+            for (InputData data : m_inputs) {
+                EcuModelCache.writeString(out, data.text);
+                EcuModelCache.writeString(out, data.request);
+                out.writeInt(data.width);
+                writeRect(out, data.rect);
+                writeFont(out, data.font);
+                writeColor(out, data.color);
+            }
+
+            out.writeInt(m_displays.size());
+            for (DisplayData data : m_displays) {
+                EcuModelCache.writeString(out, data.text);
+                EcuModelCache.writeString(out, data.request);
+                out.writeInt(data.width);
+                writeRect(out, data.rect);
+                writeFont(out, data.font);
+                writeColor(out, data.color);
+            }
+
+            out.writeInt(m_labels.size());
+            for (LabelData data : m_labels) {
+                EcuModelCache.writeString(out, data.text);
+                writeRect(out, data.rect);
+                writeFont(out, data.font);
+                out.writeInt(data.alignment);
+                writeColor(out, data.color);
+                writeColor(out, data.fontcolor);
+            }
+
+            out.writeInt(m_buttons.size());
+            for (ButtonData data : m_buttons) {
+                EcuModelCache.writeString(out, data.text);
+                EcuModelCache.writeString(out, data.uniqueName);
+                writeRect(out, data.rect);
+                writeFont(out, data.font);
+                writeSendData(out, data.sendData);
+            }
+        }
+
         public List<InputData> getInputs(){
             return m_inputs;
         }
@@ -304,6 +510,47 @@ public class Layout {
         }
     }
 
+    /*
+     * Reads a Layout written by writeBinary (see EcuModelCache)
+     */
+    public Layout(ByteBuffer buffer){
+        m_parsed = true;
+        int count = buffer.getInt();
+        m_screens = new HashMap<>(count * 2);
+        for (int i = 0; i < count; ++i){
+            ScreenData sdata = new ScreenData(buffer);
+            m_screens.put(sdata.m_screen_name, sdata);
+        }
+
+        count = buffer.getInt();
+        m_categories = new HashMap<>(count * 2);
+        for (int i = 0; i < count; ++i){
+            String category = EcuModelCache.readString(buffer);
+            int screenCount = buffer.getInt();
+            ArrayList<String> screennames = new ArrayList<>(screenCount);
+            for (int j = 0; j < screenCount; ++j){
+                screennames.add(EcuModelCache.readString(buffer));
+            }
+            m_categories.put(category, screennames);
+        }
+    }
+
+    public void writeBinary(DataOutputStream out) throws IOException {
+        out.writeInt(m_screens.size());
+        for (ScreenData sdata : m_screens.values()){
+            sdata.writeBinary(out);
+        }
+
+        out.writeInt(m_categories.size());
+        for (Map.Entry<String, ArrayList<String>> entry : m_categories.entrySet()){
+            EcuModelCache.writeString(out, entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (String screenname : entry.getValue()){
+                EcuModelCache.writeString(out, screenname);
+            }
+        }
+    }
+
     void init(JSONObject jobj){
         m_screens = new HashMap<>();
         m_categories = new HashMap<>();
@@ -319,6 +566,7 @@ public class Layout {
                     m_screens.put(key, sdata);
                 }
             }
+            m_parsed = true;
         }  catch (Exception e) {
             e.printStackTrace();
         }
@@ -342,6 +590,13 @@ public class Layout {
         }
     }
 
+    /*
+     * True if the screens were read, only parsed layouts are cached
+     */
+    public boolean isParsed(){
+        return m_parsed;
+    }
+
     public Set<String> getCategories(){
         return m_categories.keySet();
     }
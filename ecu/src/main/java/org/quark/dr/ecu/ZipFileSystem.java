@@ -1,56 +1,111 @@
 package org.quark.dr.ecu;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 /*
  *
  * A simple class that fast extracts a file stored in a big (dense) zip file
  * I build an index that contains the position and zip information
- * in a hash map.
+ * from the zip central directory.
  * I can now unzip a file stored in a big zip file at the speed of light !
- * /!\ This class handles text files only
+ * The archive is memory mapped (positional reads when too big), stored and
+ * deflated entries are read as text (getZipFile), bytes (getZipFileAsBytes,
+ * images) or streamed (getZipFileAsStream), with a small pool of inflaters
+ *
+ * Index format (ecu.idx, big endian) :
+ *   int magic 'EIDX', int version, int entry count
+ *   count records of RECORD_SIZE bytes, sorted by entry name (UTF-8 bytes) :
+ *     long data position, int compressed size, int uncompressed size,
+ *     int name offset, short name length, short compression method
+ *   names (UTF-8), name offsets are relative to the start of this block
  *
  */
 
 public class ZipFileSystem {
     static class CustomZipEntry{
         public long compressedSize, pos, uncompressedSize;
+        public int method = ZipEntry.DEFLATED;
     }
-    private HashMap<String, CustomZipEntry> m_directoryEntries;
+
+    private static final int INDEX_MAGIC = 0x45494458; // EIDX
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 12;
+    private static final int RECORD_SIZE = 24;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    // Index, either memory mapped from ecu.idx or built from the central directory
+    private ByteBuffer m_index;
+    private int m_entryCount;
     private final String m_zipFilePath;
     private final String m_indexFile;
 
+    /*
+     * ecu.zip is opened once and memory mapped on first read,
+     * archives too big to be mapped are read with positional reads
+     */
+    private RandomAccessFile m_zipFile;
+    private FileChannel m_zipChannel;
+    private ByteBuffer m_mappedZip;
+
+    private static final int MAX_POOLED_INFLATERS = 4;
+    private static final int INFLATER_CHUNK_SIZE = 16384;
+    private final ArrayDeque<PooledInflater> m_inflaterPool = new ArrayDeque<>();
+
+    private static class PooledInflater {
+        final Inflater inflater = new Inflater(true);
+        final byte[] chunk = new byte[INFLATER_CHUNK_SIZE];
+    }
+
     public ZipFileSystem(String zipFilePath, String applicationDirectory){
-        m_directoryEntries = new HashMap<>();
         m_zipFilePath = zipFilePath;
         m_indexFile = applicationDirectory + "/ecu.idx";
+        m_entryCount = 0;
     }
 
+    /*
+     * Maps the index file, fails if it is missing or in an older format
+     */
     public boolean importZipEntries(){
         try {
-            JSONArray mainJson = new JSONArray(readFile(m_indexFile));
-            for (int i = 0; i < mainJson.length(); ++i){
-                JSONObject zipEntryJson = mainJson.getJSONObject(i);
-                CustomZipEntry ze = new CustomZipEntry();
-                ze.pos = zipEntryJson.getLong("pos");
-                ze.compressedSize = zipEntryJson.getLong("compsize");
-                ze.uncompressedSize = zipEntryJson.getLong("realsize");
-                m_directoryEntries.put(zipEntryJson.getString("name"), ze);
+            RandomAccessFile indexFile = new RandomAccessFile(m_indexFile, "r");
+            ByteBuffer index;
+            try {
+                FileChannel channel = indexFile.getChannel();
+                index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                indexFile.close();
             }
+            if (index.capacity() < INDEX_HEADER_SIZE || index.getInt(0) != INDEX_MAGIC
+                    || index.getInt(4) != INDEX_VERSION)
+                return false;
+            int count = index.getInt(8);
+            if (count < 0 || index.capacity() < INDEX_HEADER_SIZE + (long)count * RECORD_SIZE)
+                return false;
+            m_index = index;
+            m_entryCount = count;
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -60,63 +115,250 @@ public class ZipFileSystem {
     }
 
     public void exportZipEntries(){
-        Iterator zeit = m_directoryEntries.entrySet().iterator();
-        JSONArray mainJson =  new JSONArray();
-        while(zeit.hasNext()){
-            HashMap.Entry pair = (HashMap.Entry)zeit.next();
-            JSONObject jsonEntry = new JSONObject();
+        if (m_index == null)
+            return;
+        File indexFile = new File(m_indexFile);
+        File tmpFile = new File(m_indexFile + ".tmp");
+        try {
+            FileOutputStream os = new FileOutputStream(tmpFile);
             try {
-                jsonEntry.put("pos", ((CustomZipEntry) pair.getValue()).pos);
-                jsonEntry.put("realsize", ((CustomZipEntry) pair.getValue()).uncompressedSize);
-                jsonEntry.put("compsize", ((CustomZipEntry) pair.getValue()).compressedSize);
-                jsonEntry.put("name", ((String)pair.getKey()));
-                mainJson.put(jsonEntry);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return;
+                ByteBuffer index = m_index.duplicate();
+                index.clear();
+                os.getChannel().write(index);
+            } finally {
+                os.close();
             }
-        }
-
-        try {
-            FileWriter fileWriter = new FileWriter(m_indexFile);
-            fileWriter.write(mainJson.toString(0));
-            fileWriter.close();
+            if (!tmpFile.renameTo(indexFile))
+                throw new IOException("Cannot write " + m_indexFile);
         } catch (Exception e) {
             e.printStackTrace();
+            tmpFile.delete();
+        }
+    }
+
+    private static class DirectoryEntry {
+        byte[] name;
+        CustomZipEntry entry;
+    }
+
+    private static int compareNames(byte[] a, byte[] b){
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; ++i){
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0)
+                return diff;
+        }
+        return a.length - b.length;
+    }
+
+    /*
+     * Little endian view of a region of the archive
+     */
+    private ByteBuffer readZipRegion(long position, int length) throws IOException {
+        openZipFile();
+        ByteBuffer region;
+        if (m_mappedZip != null) {
+            region = m_mappedZip.duplicate();
+            region.limit((int)(position + length));
+            region.position((int)position);
+            region = region.slice();
+        } else {
+            region = ByteBuffer.allocate(length);
+            while (region.hasRemaining()) {
+                if (m_zipChannel.read(region, position + region.position()) < 0)
+                    throw new EOFException("Unexpected end of archive");
+            }
+            region.flip();
         }
+        return region.order(ByteOrder.LITTLE_ENDIAN);
     }
 
     /*
-     * Map zip entries to fast load them
-     * This is the slowest part
+     * Build the index from the zip central directory
+     * Only the end of central directory record, the central directory and
+     * the local headers (for the data position) are read
      */
     public void getZipEntries() {
-        m_directoryEntries = new HashMap<>();
+        m_index = null;
+        m_entryCount = 0;
         try {
-            FileInputStream zip_is = new FileInputStream(m_zipFilePath);
-            ZipInputStream zis = new ZipInputStream(zip_is);
-            ZipEntry ze;
-            long pos = 0;
-            while ((ze = zis.getNextEntry()) != null) {
-                if(ze.isDirectory())
+            openZipFile();
+            long zipSize = m_zipChannel.size();
+
+            // End of central directory record, at the end of the archive, before an optional comment
+            int tailSize = (int)Math.min(zipSize, 22 + 65535);
+            ByteBuffer tail = readZipRegion(zipSize - tailSize, tailSize);
+            int eocd = -1;
+            for (int i = tailSize - 22; i >= 0; --i){
+                if (tail.getInt(i) == EOCD_SIGNATURE) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0)
+                throw new IOException("Zip central directory not found");
+
+            long entryCount = tail.getShort(eocd + 10) & 0xFFFF;
+            long directorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+            long directoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+            if ((entryCount == 0xFFFF || directoryOffset == 0xFFFFFFFFL) && eocd >= 20
+                    && tail.getInt(eocd - 20) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                ByteBuffer zip64Eocd = readZipRegion(tail.getLong(eocd - 12), 56);
+                if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE)
+                    throw new IOException("Invalid zip64 end of central directory");
+                entryCount = zip64Eocd.getLong(32);
+                directorySize = zip64Eocd.getLong(40);
+                directoryOffset = zip64Eocd.getLong(48);
+            }
+
+            ByteBuffer directory = readZipRegion(directoryOffset, (int)directorySize);
+            ArrayList<DirectoryEntry> entries = new ArrayList<>((int)entryCount);
+            int namesSize = 0;
+            int pos = 0;
+            for (long i = 0; i < entryCount; ++i){
+                if (directory.getInt(pos) != CENTRAL_HEADER_SIGNATURE)
+                    throw new IOException("Invalid zip central directory");
+                int method = directory.getShort(pos + 10) & 0xFFFF;
+                long compressedSize = directory.getInt(pos + 20) & 0xFFFFFFFFL;
+                long uncompressedSize = directory.getInt(pos + 24) & 0xFFFFFFFFL;
+                int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+                int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+                int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+                long localHeaderOffset = directory.getInt(pos + 42) & 0xFFFFFFFFL;
+
+                // Zip64 extended information
+                int extra = pos + 46 + nameLength;
+                int extraEnd = extra + extraLength;
+                while (extra + 4 <= extraEnd){
+                    int tag = directory.getShort(extra) & 0xFFFF;
+                    int size = directory.getShort(extra + 2) & 0xFFFF;
+                    if (tag == 0x0001) {
+                        int field = extra + 4;
+                        if (uncompressedSize == 0xFFFFFFFFL) {
+                            uncompressedSize = directory.getLong(field);
+                            field += 8;
+                        }
+                        if (compressedSize == 0xFFFFFFFFL) {
+                            compressedSize = directory.getLong(field);
+                            field += 8;
+                        }
+                        if (localHeaderOffset == 0xFFFFFFFFL)
+                            localHeaderOffset = directory.getLong(field);
+                    }
+                    extra += 4 + size;
+                }
+
+                byte[] name = new byte[nameLength];
+                directory.position(pos + 46);
+                directory.get(name);
+                pos += 46 + nameLength + extraLength + commentLength;
+
+                if (nameLength == 0 || name[nameLength - 1] == '/')
                     continue;
-                String filename = ze.getName();
-                long offset = 30 + ze.getName().length() + (ze.getExtra() != null ? ze.getExtra().length : 0);
-                pos += offset;
-                CustomZipEntry cze = new CustomZipEntry();
-                cze.pos = pos;
-                cze.compressedSize = ze.getCompressedSize();
-                cze.uncompressedSize = ze.getSize();
-                m_directoryEntries.put(filename, cze);
-                pos += cze.compressedSize;
+
+                // The local header may have a different extra field
+                ByteBuffer localHeader = readZipRegion(localHeaderOffset, 30);
+                if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE)
+                    throw new IOException("Invalid zip local header");
+
+                DirectoryEntry directoryEntry = new DirectoryEntry();
+                directoryEntry.name = name;
+                directoryEntry.entry = new CustomZipEntry();
+                directoryEntry.entry.method = method;
+                directoryEntry.entry.compressedSize = compressedSize;
+                directoryEntry.entry.uncompressedSize = uncompressedSize;
+                directoryEntry.entry.pos = localHeaderOffset + 30
+                        + (localHeader.getShort(26) & 0xFFFF) + (localHeader.getShort(28) & 0xFFFF);
+                entries.add(directoryEntry);
+                namesSize += nameLength;
+            }
+
+            Collections.sort(entries, new Comparator<DirectoryEntry>() {
+                @Override
+                public int compare(DirectoryEntry o1, DirectoryEntry o2) {
+                    return compareNames(o1.name, o2.name);
+                }
+            });
+
+            int count = entries.size();
+            ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_SIZE + count * RECORD_SIZE + namesSize);
+            index.putInt(INDEX_MAGIC);
+            index.putInt(INDEX_VERSION);
+            index.putInt(count);
+            int nameOffset = 0;
+            for (DirectoryEntry directoryEntry : entries){
+                index.putLong(directoryEntry.entry.pos);
+                index.putInt((int)directoryEntry.entry.compressedSize);
+                index.putInt((int)directoryEntry.entry.uncompressedSize);
+                index.putInt(nameOffset);
+                index.putShort((short)directoryEntry.name.length);
+                index.putShort((short)directoryEntry.entry.method);
+                nameOffset += directoryEntry.name.length;
             }
+            for (DirectoryEntry directoryEntry : entries){
+                index.put(directoryEntry.name);
+            }
+            index.flip();
+            m_index = index;
+            m_entryCount = count;
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /*
+     * Binary search of the entry name in the index, returns the record number or -1
+     */
+    private int findEntry(String filename){
+        if (m_index == null)
+            return -1;
+        byte[] name = filename.getBytes(UTF8);
+        int namesStart = INDEX_HEADER_SIZE + m_entryCount * RECORD_SIZE;
+        int low = 0;
+        int high = m_entryCount - 1;
+        while (low <= high){
+            int middle = (low + high) >>> 1;
+            int record = INDEX_HEADER_SIZE + middle * RECORD_SIZE;
+            int nameOffset = namesStart + m_index.getInt(record + 16);
+            int nameLength = m_index.getShort(record + 20) & 0xFFFF;
+
+            int cmp = 0;
+            int len = Math.min(nameLength, name.length);
+            for (int i = 0; i < len && cmp == 0; ++i){
+                cmp = (m_index.get(nameOffset + i) & 0xFF) - (name[i] & 0xFF);
+            }
+            if (cmp == 0)
+                cmp = nameLength - name.length;
+
+            if (cmp < 0)
+                low = middle + 1;
+            else if (cmp > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    private CustomZipEntry getEntry(String filename){
+        int entryNumber = findEntry(filename);
+        if (entryNumber < 0)
+            return null;
+        int record = INDEX_HEADER_SIZE + entryNumber * RECORD_SIZE;
+        CustomZipEntry entry = new CustomZipEntry();
+        entry.pos = m_index.getLong(record);
+        entry.compressedSize = m_index.getInt(record + 8) & 0xFFFFFFFFL;
+        entry.uncompressedSize = m_index.getInt(record + 12) & 0xFFFFFFFFL;
+        entry.method = m_index.getShort(record + 22) & 0xFFFF;
+        return entry;
+    }
+
+    public String getZipFilePath(){
+        return m_zipFilePath;
+    }
+
     public boolean fileExists(String filename){
-        return m_directoryEntries.containsKey(filename);
+        return findEntry(filename) >= 0;
     }
 
     public String getZipFile(String filename) {
@@ -129,40 +371,221 @@ public class ZipFileSystem {
     }
 
     public byte[] getZipFileAsBytes(String filename) {
+        CustomZipEntry entry = getEntry(filename);
+        if (entry == null)
+            return null;
+
+        PooledInflater pooledInflater = acquireInflater();
         try {
-            long pos = m_directoryEntries.get(filename).pos;
-            long compressedSize = m_directoryEntries.get(filename).compressedSize;
-            long realSize = m_directoryEntries.get(filename).uncompressedSize;
-            byte[] array = new byte[(int)compressedSize];
-            FileInputStream zip_is = new FileInputStream(m_zipFilePath);
-            zip_is.getChannel().position(pos);
-            zip_is.read(array, 0, (int)compressedSize);
-            Inflater inflater = new Inflater(true);
-            inflater.setInput(array, 0, (int)compressedSize);
-            byte[] result = new byte[(int)realSize];
-            inflater.inflate(result);
-            inflater.end();
+            InputStream compressed = openEntry(entry);
+            if (entry.method == ZipEntry.STORED) {
+                byte[] result = new byte[(int)entry.uncompressedSize];
+                int read = 0;
+                while (read < result.length) {
+                    int len = compressed.read(result, read, result.length - read);
+                    if (len < 0)
+                        throw new EOFException("Unexpected end of zip entry " + filename);
+                    read += len;
+                }
+                return result;
+            }
+            Inflater inflater = pooledInflater.inflater;
+            byte[] chunk = pooledInflater.chunk;
+            byte[] result = new byte[(int)entry.uncompressedSize];
+            int written = 0;
+            boolean eof = false;
+            while (written < result.length && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (eof)
+                        throw new EOFException("Unexpected end of zip entry " + filename);
+                    int len = compressed.read(chunk, 0, chunk.length);
+                    if (len == -1) {
+                        // Raw inflate may need an extra dummy byte
+                        chunk[0] = 0;
+                        len = 1;
+                        eof = true;
+                    }
+                    inflater.setInput(chunk, 0, len);
+                }
+                int count = inflater.inflate(result, written, result.length - written);
+                if (count == 0 && inflater.needsDictionary())
+                    throw new DataFormatException("Zip entry needs a dictionary");
+                written += count;
+            }
             return result;
         } catch(IOException e) {
             e.printStackTrace();
             return null;
         } catch (DataFormatException e){
             e.printStackTrace();
+        } finally {
+            releaseInflater(pooledInflater);
         }
         return null;
     }
 
-    private String readFile(String file) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            StringBuilder stringBuilder = new StringBuilder();
-            String ls = System.getProperty("line.separator");
-            while ((line = reader.readLine()) != null) {
-                stringBuilder.append(line);
-                stringBuilder.append(ls);
+    private PooledInflater acquireInflater(){
+        synchronized (m_inflaterPool) {
+            PooledInflater pooledInflater = m_inflaterPool.poll();
+            if (pooledInflater != null)
+                return pooledInflater;
+        }
+        return new PooledInflater();
+    }
+
+    private void releaseInflater(PooledInflater pooledInflater){
+        pooledInflater.inflater.reset();
+        synchronized (m_inflaterPool) {
+            if (m_inflaterPool.size() < MAX_POOLED_INFLATERS) {
+                m_inflaterPool.push(pooledInflater);
+                return;
             }
+        }
+        pooledInflater.inflater.end();
+    }
+
+    private synchronized void openZipFile() throws IOException {
+        if (m_zipChannel != null)
+            return;
+        m_zipFile = new RandomAccessFile(m_zipFilePath, "r");
+        m_zipChannel = m_zipFile.getChannel();
+        if (m_zipChannel.size() <= Integer.MAX_VALUE) {
+            try {
+                m_mappedZip = m_zipChannel.map(FileChannel.MapMode.READ_ONLY, 0, m_zipChannel.size());
+            } catch (IOException e) {
+                e.printStackTrace();
+                m_mappedZip = null;
+            }
+        }
+    }
+
+    /*
+     * Releases the archive file, it will be opened again on next read
+     */
+    public synchronized void close(){
+        if (m_zipChannel == null)
+            return;
+        try {
+            m_zipFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        m_zipFile = null;
+        m_zipChannel = null;
+        m_mappedZip = null;
+        synchronized (m_inflaterPool) {
+            for (PooledInflater pooledInflater : m_inflaterPool)
+                pooledInflater.inflater.end();
+            m_inflaterPool.clear();
+        }
+    }
+
+    /*
+     * Compressed data of a zip entry, read from the mapped archive
+     */
+    private synchronized InputStream openEntry(CustomZipEntry entry) throws IOException {
+        openZipFile();
+        if (m_mappedZip != null) {
+            ByteBuffer region = m_mappedZip.duplicate();
+            region.limit((int)(entry.pos + entry.compressedSize));
+            region.position((int)entry.pos);
+            return new MappedEntryInputStream(region);
+        }
+        return new ChannelEntryInputStream(m_zipChannel, entry.pos, entry.compressedSize);
+    }
+
+    /*
+     * Stream on the inflated content of a zip entry, the entry is inflated
+     * on the fly while it is read. The stream must be closed by the caller
+     */
+    public InputStream getZipFileAsStream(String filename) throws IOException {
+        CustomZipEntry entry = getEntry(filename);
+        if (entry == null)
+            throw new IOException("Zip entry not found : " + filename);
+        if (entry.method == ZipEntry.STORED)
+            return openEntry(entry);
+        return new EntryInflaterInputStream(openEntry(entry));
+    }
+
+    private static class MappedEntryInputStream extends InputStream {
+        private final ByteBuffer m_region;
+
+        MappedEntryInputStream(ByteBuffer region){
+            m_region = region;
+        }
+
+        @Override
+        public int read() {
+            return m_region.hasRemaining() ? m_region.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!m_region.hasRemaining())
+                return -1;
+            len = Math.min(len, m_region.remaining());
+            m_region.get(b, off, len);
+            return len;
+        }
+    }
+
+    private static class ChannelEntryInputStream extends InputStream {
+        private final FileChannel m_channel;
+        private long m_position;
+        private long m_remaining;
+
+        ChannelEntryInputStream(FileChannel channel, long position, long length){
+            m_channel = channel;
+            m_position = position;
+            m_remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (m_remaining <= 0)
+                return -1;
+            int count = m_channel.read(ByteBuffer.wrap(b, off, (int)Math.min(len, m_remaining)), m_position);
+            if (count > 0) {
+                m_position += count;
+                m_remaining -= count;
+            }
+            return count;
+        }
+    }
+
+    private static class EntryInflaterInputStream extends InflaterInputStream {
+        private boolean m_eof;
+
+        EntryInflaterInputStream(InputStream in){
+            super(in, new Inflater(true), 8192);
+        }
+
+        /*
+         * Raw inflate may need an extra dummy byte after the compressed data
+         */
+        @Override
+        protected void fill() throws IOException {
+            if (m_eof)
+                throw new EOFException("Unexpected end of zip entry");
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                m_eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
 
-            return stringBuilder.toString();
+        @Override
+        public void close() throws IOException {
+            inf.end();
+            super.close();
         }
     }
 }
@@ -231,12 +231,23 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
             if (mConnection == null) {
                 throw new IOException("Already closed");
             }
+            closeReadEngine();
             mConnection.close();
             mConnection = null;
         }
 
+        @Override
+        protected UsbEndpoint getReadEndpoint() {
+            return mReadEndpoint;
+        }
+
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
+            final UsbReadEngine readEngine = mReadEngine;
+            if (readEngine != null) {
+                return readEngine.read(dest, timeoutMillis);
+            }
+
             if (mEnableAsyncReads) {
               final UsbRequest request = new UsbRequest();
               try {
@@ -285,38 +296,8 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
         }
 
         @Override
-        public int write(byte[] src, int timeoutMillis) throws IOException {
-            // TODO(mikey): Nearly identical to FtdiSerial write. Refactor.
-            int offset = 0;
-
-            while (offset < src.length) {
-                final int writeLength;
-                final int amtWritten;
-
-                synchronized (mWriteBufferLock) {
-                    final byte[] writeBuffer;
-
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                    if (offset == 0) {
-                        writeBuffer = src;
-                    } else {
-                        // bulkTransfer does not support offsets, make a copy.
-                        System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                        writeBuffer = mWriteBuffer;
-                    }
-
-                    amtWritten = mConnection.bulkTransfer(mWriteEndpoint, writeBuffer, writeLength,
-                            timeoutMillis);
-                }
-                if (amtWritten <= 0) {
-                    throw new IOException("Error writing " + writeLength
-                            + " bytes at offset " + offset + " length=" + src.length);
-                }
-
-                Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
-                offset += amtWritten;
-            }
-            return offset;
+        protected UsbEndpoint getWriteEndpoint() {
+            return mWriteEndpoint;
         }
 
         @Override
@@ -136,6 +136,7 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 
 			// TODO: nothing sended on close, maybe needed?
 
+			closeReadEngine();
 			try {
 				mConnection.close();
 			} finally {
@@ -144,8 +145,18 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 		}
 
 
+		@Override
+		protected UsbEndpoint getReadEndpoint() {
+			return mReadEndpoint;
+		}
+
 		@Override
 		public int read(byte[] dest, int timeoutMillis) throws IOException {
+			final UsbReadEngine readEngine = mReadEngine;
+			if (readEngine != null) {
+				return readEngine.read(dest, timeoutMillis);
+			}
+
 			final int numBytesRead;
 			synchronized (mReadBufferLock) {
 				int readAmt = Math.min(dest.length, mReadBuffer.length);
@@ -164,37 +175,8 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 		}
 
 		@Override
-		public int write(byte[] src, int timeoutMillis) throws IOException {
-			int offset = 0;
-
-			while (offset < src.length) {
-				final int writeLength;
-				final int amtWritten;
-
-				synchronized (mWriteBufferLock) {
-					final byte[] writeBuffer;
-
-					writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-					if (offset == 0) {
-						writeBuffer = src;
-					} else {
-						// bulkTransfer does not support offsets, make a copy.
-						System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-						writeBuffer = mWriteBuffer;
-					}
-
-					amtWritten = mConnection.bulkTransfer(mWriteEndpoint, writeBuffer, writeLength,
-							timeoutMillis);
-				}
-				if (amtWritten <= 0) {
-					throw new IOException("Error writing " + writeLength
-							+ " bytes at offset " + offset + " length=" + src.length);
-				}
-
-				Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
-				offset += amtWritten;
-			}
-			return offset;
+		protected UsbEndpoint getWriteEndpoint() {
+			return mWriteEndpoint;
 		}
 
 		private int controlOut(int request, int value, int index) {
@@ -23,8 +23,10 @@ package org.quark.dr.usbserial.driver;
 
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A base class shared by several driver implementations.
@@ -51,6 +53,9 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
     /** Internal write buffer.  Guarded by {@link #mWriteBufferLock}. */
     protected byte[] mWriteBuffer;
 
+    /** Asynchronous read engine, non-null when async reads are enabled. */
+    protected volatile UsbReadEngine mReadEngine;
+
     public CommonUsbSerialPort(UsbDevice device, int portNumber) {
         mDevice = device;
         mPortNumber = portNumber;
@@ -119,6 +124,46 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
         }
     }
 
+    /**
+     * Returns the bulk-in endpoint, used by the asynchronous read engine.
+     *
+     * @return the endpoint
+     */
+    protected abstract UsbEndpoint getReadEndpoint();
+
+    /**
+     * Returns the bulk-out endpoint.
+     *
+     * @return the endpoint
+     */
+    protected abstract UsbEndpoint getWriteEndpoint();
+
+    @Override
+    public void setAsyncReads(int requestCount) throws IOException {
+        closeReadEngine();
+        if (requestCount <= 0) {
+            return;
+        }
+        if (mConnection == null) {
+            throw new IOException("Not open");
+        }
+        synchronized (mReadBufferLock) {
+            mReadEngine = new UsbReadEngine(mConnection, getReadEndpoint(), requestCount,
+                    Math.min(mReadBuffer.length, 4096));
+        }
+    }
+
+    /**
+     * Releases the asynchronous read engine, called before the connection is closed.
+     */
+    protected void closeReadEngine() {
+        UsbReadEngine readEngine = mReadEngine;
+        mReadEngine = null;
+        if (readEngine != null) {
+            readEngine.close();
+        }
+    }
+
     @Override
     public abstract void open(UsbDeviceConnection connection) throws IOException;
 
@@ -129,7 +174,74 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
     public abstract int read(final byte[] dest, final int timeoutMillis) throws IOException;
 
     @Override
-    public abstract int write(final byte[] src, final int timeoutMillis) throws IOException;
+    public int write(final byte[] src, final int timeoutMillis) throws IOException {
+        return write(src, 0, src.length, timeoutMillis);
+    }
+
+    /**
+     * Writes the source buffer in chunks of at most the write buffer size,
+     * using the offset variant of bulkTransfer (API 18) instead of a copy.
+     */
+    @Override
+    public int write(final byte[] src, final int offset, final int length,
+                     final int timeoutMillis) throws IOException {
+        final UsbEndpoint endpoint = getWriteEndpoint();
+        final int end = offset + length;
+        int position = offset;
+
+        while (position < end) {
+            final int writeLength;
+            final int amtWritten;
+
+            synchronized (mWriteBufferLock) {
+                writeLength = Math.min(end - position, mWriteBuffer.length);
+                amtWritten = mConnection.bulkTransfer(endpoint, src, position, writeLength,
+                        timeoutMillis);
+            }
+            if (amtWritten <= 0) {
+                throw new IOException("Error writing " + writeLength
+                        + " bytes at offset " + (position - offset) + " length=" + length);
+            }
+
+            position += amtWritten;
+        }
+        return length;
+    }
+
+    @Override
+    public int write(final ByteBuffer src, final int timeoutMillis) throws IOException {
+        final int length = src.remaining();
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), length, timeoutMillis);
+            src.position(src.limit());
+            return length;
+        }
+
+        // Direct buffers go through the write buffer
+        final UsbEndpoint endpoint = getWriteEndpoint();
+        while (src.hasRemaining()) {
+            final int writeLength;
+            final int amtWritten;
+
+            synchronized (mWriteBufferLock) {
+                writeLength = Math.min(src.remaining(), mWriteBuffer.length);
+                src.mark();
+                src.get(mWriteBuffer, 0, writeLength);
+                amtWritten = mConnection.bulkTransfer(endpoint, mWriteBuffer, writeLength,
+                        timeoutMillis);
+                if (amtWritten > 0 && amtWritten < writeLength) {
+                    src.reset();
+                    src.position(src.position() + amtWritten);
+                }
+            }
+            if (amtWritten <= 0) {
+                throw new IOException("Error writing " + writeLength
+                        + " bytes at offset " + (length - src.remaining() - writeLength)
+                        + " length=" + length);
+            }
+        }
+        return length;
+    }
 
     @Override
     public abstract void setParameters(
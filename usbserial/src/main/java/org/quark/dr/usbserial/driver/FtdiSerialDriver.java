@@ -212,7 +212,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         private final int filterStatusBytes(byte[] src, byte[] dest, int totalBytesRead, int maxPacketSize) {
             final int packetsCount = totalBytesRead / maxPacketSize + (totalBytesRead % maxPacketSize == 0 ? 0 : 1);
             for (int packetIdx = 0; packetIdx < packetsCount; ++packetIdx) {
-                final int count = (packetIdx == (packetsCount - 1))
+                final int count = (packetIdx == (packetsCount - 1) && (totalBytesRead % maxPacketSize) != 0)
                         ? (totalBytesRead % maxPacketSize) - MODEM_STATUS_HEADER_LENGTH
                         : maxPacketSize - MODEM_STATUS_HEADER_LENGTH;
                 if (count > 0) {
@@ -269,6 +269,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             if (mConnection == null) {
                 throw new IOException("Already closed");
             }
+            closeReadEngine();
             try {
                 mConnection.close();
             } finally {
@@ -276,10 +277,33 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             }
         }
 
+        @Override
+        protected UsbEndpoint getReadEndpoint() {
+            return mDevice.getInterface(0).getEndpoint(0);
+        }
+
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
             final UsbEndpoint endpoint = mDevice.getInterface(0).getEndpoint(0);
 
+            final UsbReadEngine readEngine = mReadEngine;
+            if (readEngine != null) {
+                synchronized (mReadBufferLock) {
+                    // Whole transfers are read, status bytes are at each packet start
+                    final int totalBytesRead = readEngine.read(mReadBuffer, timeoutMillis);
+                    if (totalBytesRead < MODEM_STATUS_HEADER_LENGTH) {
+                        return 0;
+                    }
+                    final int payloadBytesRead = filterStatusBytes(mReadBuffer, mReadBuffer,
+                            totalBytesRead, endpoint.getMaxPacketSize());
+                    if (payloadBytesRead > dest.length) {
+                        throw new IOException("Destination buffer too small");
+                    }
+                    System.arraycopy(mReadBuffer, 0, dest, 0, payloadBytesRead);
+                    return payloadBytesRead;
+                }
+            }
+
             if (ENABLE_ASYNC_READS) {
                 final int readAmt;
                 synchronized (mReadBufferLock) {
@@ -325,39 +349,8 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         }
 
         @Override
-        public int write(byte[] src, int timeoutMillis) throws IOException {
-            final UsbEndpoint endpoint = mDevice.getInterface(0).getEndpoint(1);
-            int offset = 0;
-
-            while (offset < src.length) {
-                final int writeLength;
-                final int amtWritten;
-
-                synchronized (mWriteBufferLock) {
-                    final byte[] writeBuffer;
-
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                    if (offset == 0) {
-                        writeBuffer = src;
-                    } else {
-                        // bulkTransfer does not support offsets, make a copy.
-                        System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                        writeBuffer = mWriteBuffer;
-                    }
-
-                    amtWritten = mConnection.bulkTransfer(endpoint, writeBuffer, writeLength,
-                            timeoutMillis);
-                }
-
-                if (amtWritten <= 0) {
-                    throw new IOException("Error writing " + writeLength
-                            + " bytes at offset " + offset + " length=" + src.length);
-                }
-
-                Log.d(TAG, "Wrote amtWritten=" + amtWritten + " attempted=" + writeLength);
-                offset += amtWritten;
-            }
-            return offset;
+        protected UsbEndpoint getWriteEndpoint() {
+            return mDevice.getInterface(0).getEndpoint(1);
         }
 
         private int setBaudRate(int baudRate) throws IOException {
@@ -345,6 +345,7 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             if (mConnection == null) {
                 throw new IOException("Already closed");
             }
+            closeReadEngine();
             try {
                 mStopReadStatusThread = true;
                 synchronized (mReadStatusThreadLock) {
@@ -366,8 +367,18 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             }
         }
 
+        @Override
+        protected UsbEndpoint getReadEndpoint() {
+            return mReadEndpoint;
+        }
+
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
+            final UsbReadEngine readEngine = mReadEngine;
+            if (readEngine != null) {
+                return readEngine.read(dest, timeoutMillis);
+            }
+
             synchronized (mReadBufferLock) {
                 int readAmt = Math.min(dest.length, mReadBuffer.length);
                 int numBytesRead = mConnection.bulkTransfer(mReadEndpoint, mReadBuffer,
@@ -381,38 +392,8 @@ public class ProlificSerialDriver implements UsbSerialDriver {
         }
 
         @Override
-        public int write(byte[] src, int timeoutMillis) throws IOException {
-            int offset = 0;
-
-            while (offset < src.length) {
-                final int writeLength;
-                final int amtWritten;
-
-                synchronized (mWriteBufferLock) {
-                    final byte[] writeBuffer;
-
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                    if (offset == 0) {
-                        writeBuffer = src;
-                    } else {
-                        // bulkTransfer does not support offsets, make a copy.
-                        System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                        writeBuffer = mWriteBuffer;
-                    }
-
-                    amtWritten = mConnection.bulkTransfer(mWriteEndpoint,
-                            writeBuffer, writeLength, timeoutMillis);
-                }
-
-                if (amtWritten <= 0) {
-                    throw new IOException("Error writing " + writeLength
-                            + " bytes at offset " + offset + " length="
-                            + src.length);
-                }
-
-                offset += amtWritten;
-            }
-            return offset;
+        protected UsbEndpoint getWriteEndpoint() {
+            return mWriteEndpoint;
         }
 
         @Override
@@ -0,0 +1,171 @@
+package org.quark.dr.usbserial.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Asynchronous reader of a bulk-in endpoint.
+ *
+ * Several {@link UsbRequest}s, each with its own preallocated direct buffer, are
+ * kept queued on the endpoint so the host controller always has a transfer to
+ * complete. A completed request is drained by {@link #read(byte[], int)} and
+ * queued again as soon as it is empty, no incoming data is lost between transfers.
+ *
+ * Only one thread may read at a time. The read timeout is only honoured on
+ * Android 8.0 and later, earlier versions wait until data arrives or until
+ * {@link #close()} cancels the pending transfers.
+ */
+public class UsbReadEngine {
+
+    public static final int DEFAULT_REQUEST_COUNT = 4;
+
+    private final UsbDeviceConnection mConnection;
+    private final UsbRequest[] mRequests;
+    private final int mBufferSize;
+
+    // Completed request being drained, null when all requests are queued
+    private UsbRequest mPendingRequest;
+    private volatile boolean mClosed;
+
+    /**
+     * Creates the requests and queues them on the endpoint.
+     *
+     * @param connection open connection
+     * @param endpoint bulk-in endpoint
+     * @param requestCount number of transfers kept queued
+     * @param bufferSize size of each transfer, in bytes
+     * @throws IOException if a request cannot be queued
+     */
+    public UsbReadEngine(UsbDeviceConnection connection, UsbEndpoint endpoint,
+                         int requestCount, int bufferSize) throws IOException {
+        mConnection = connection;
+        mBufferSize = bufferSize;
+        mRequests = new UsbRequest[requestCount];
+        try {
+            for (int i = 0; i < requestCount; ++i) {
+                UsbRequest request = new UsbRequest();
+                if (!request.initialize(connection, endpoint)) {
+                    throw new IOException("Error initializing request.");
+                }
+                request.setClientData(ByteBuffer.allocateDirect(bufferSize));
+                mRequests[i] = request;
+                queue(request);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the size of each transfer, a {@link #read(byte[], int)} with a
+     * destination at least this large always returns whole transfers
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void queue(UsbRequest request) throws IOException {
+        ByteBuffer buffer = (ByteBuffer) request.getClientData();
+        buffer.clear();
+        boolean queued;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            queued = request.queue(buffer);
+        } else {
+            queued = request.queue(buffer, mBufferSize);
+        }
+        if (!queued) {
+            throw new IOException("Error queueing request.");
+        }
+    }
+
+    private UsbRequest waitRequest(int timeoutMillis) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && timeoutMillis > 0) {
+            try {
+                return mConnection.requestWait(timeoutMillis);
+            } catch (TimeoutException e) {
+                return null;
+            }
+        }
+        UsbRequest request = mConnection.requestWait();
+        if (request == null) {
+            throw new IOException("Null response");
+        }
+        return request;
+    }
+
+    private boolean isOwnRequest(UsbRequest request) {
+        for (UsbRequest r : mRequests) {
+            if (r == request) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads data from the oldest completed transfer.
+     *
+     * @param dest the destination byte buffer
+     * @param timeoutMillis the timeout for waiting a transfer
+     * @return the actual number of bytes read, 0 on timeout
+     * @throws IOException if the engine is closed or the connection lost
+     */
+    public synchronized int read(byte[] dest, int timeoutMillis) throws IOException {
+        if (mClosed) {
+            throw new IOException("Read engine closed");
+        }
+
+        while (mPendingRequest == null) {
+            UsbRequest request = waitRequest(timeoutMillis);
+            if (mClosed) {
+                throw new IOException("Read engine closed");
+            }
+            if (request == null) {
+                return 0;
+            }
+            if (!isOwnRequest(request)) {
+                continue;
+            }
+            ByteBuffer buffer = (ByteBuffer) request.getClientData();
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                // Zero length packet
+                queue(request);
+                continue;
+            }
+            mPendingRequest = request;
+        }
+
+        ByteBuffer buffer = (ByteBuffer) mPendingRequest.getClientData();
+        int count = Math.min(dest.length, buffer.remaining());
+        buffer.get(dest, 0, count);
+        if (!buffer.hasRemaining()) {
+            UsbRequest request = mPendingRequest;
+            mPendingRequest = null;
+            queue(request);
+        }
+        return count;
+    }
+
+    /**
+     * Cancels the queued transfers and releases the requests.
+     * Must be called before the connection is closed.
+     */
+    public void close() {
+        mClosed = true;
+        for (UsbRequest request : mRequests) {
+            if (request != null) {
+                request.cancel();
+                request.close();
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for a single serial port.
@@ -133,6 +134,31 @@ public interface UsbSerialPort {
      */
     public int write(final byte[] src, final int timeoutMillis) throws IOException;
 
+    /**
+     * Writes {@code length} bytes of the source buffer, starting at {@code offset},
+     * without copying them.
+     *
+     * @param src the source byte buffer
+     * @param offset the offset of the first byte to write
+     * @param length the number of bytes to write
+     * @param timeoutMillis the timeout for writing
+     * @return the actual number of bytes written
+     * @throws IOException if an error occurred during writing
+     */
+    public int write(final byte[] src, final int offset, final int length,
+                     final int timeoutMillis) throws IOException;
+
+    /**
+     * Writes the remaining bytes of the source buffer and advances its position.
+     * Heap buffers are written without copy.
+     *
+     * @param src the source byte buffer
+     * @param timeoutMillis the timeout for writing
+     * @return the actual number of bytes written
+     * @throws IOException if an error occurred during writing
+     */
+    public int write(final ByteBuffer src, final int timeoutMillis) throws IOException;
+
     /**
      * Sets various serial port parameters.
      *
@@ -225,4 +251,16 @@ public interface UsbSerialPort {
      */
     public boolean purgeHwBuffers(boolean flushRX, boolean flushTX) throws IOException;
 
+    /**
+     * Switches the port to asynchronous reads: {@code requestCount} transfers
+     * are kept queued on the bulk-in endpoint by a {@link UsbReadEngine}.
+     * Must be called after {@link #open(UsbDeviceConnection)}, the engine is
+     * released by {@link #close()}.
+     *
+     * @param requestCount number of queued transfers, 0 to go back to
+     * synchronous reads
+     * @throws IOException if the transfers cannot be queued
+     */
+    public void setAsyncReads(int requestCount) throws IOException;
+
 }
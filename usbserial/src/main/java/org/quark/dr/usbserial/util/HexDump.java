@@ -24,6 +24,18 @@ public class HexDump {
     private final static char[] HEX_DIGITS = {
             '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
     };
+    // Value of each ASCII hex digit, -1 otherwise
+    private final static byte[] HEX_VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++) {
+            HEX_VALUES[i] = -1;
+        }
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+            HEX_VALUES[Character.toLowerCase(HEX_DIGITS[i])] = (byte) i;
+        }
+    }
 
     public static String dumpHexString(byte[] array) {
         return dumpHexString(array, 0, array.length);
@@ -138,14 +150,10 @@ public class HexDump {
     }
 
     private static int toByte(char c) {
-        if (c >= '0' && c <= '9')
-            return (c - '0');
-        if (c >= 'A' && c <= 'F')
-            return (c - 'A' + 10);
-        if (c >= 'a' && c <= 'f')
-            return (c - 'a' + 10);
-
-        throw new RuntimeException("Invalid hex char '" + c + "'");
+        int value = c < 128 ? HEX_VALUES[c] : -1;
+        if (value < 0)
+            throw new RuntimeException("Invalid hex char '" + c + "'");
+        return value;
     }
 
     public static byte[] hexStringToByteArray(String hexString) {
@@ -38,7 +38,7 @@ import java.nio.ByteBuffer;
 public class SerialInputOutputManager implements Runnable {
 
     private static final String TAG = SerialInputOutputManager.class.getSimpleName();
-    private static final boolean DEBUG = true;
+    private static final boolean DEBUG = false;
 
     private static final int READ_WAIT_MILLIS = 200;
     private static final int BUFSIZ = 4096;
@@ -120,7 +120,8 @@ public class SerialInputOutputManager implements Runnable {
      * called, or until a driver exception is raised.
      *
      * NOTE(mikey): Uses inefficient read/write-with-timeout.
-     * TODO(mikey): Read asynchronously with {@link UsbRequest#queue(ByteBuffer, int)}
+     * Reads are asynchronous ({@link UsbRequest#queue(ByteBuffer, int)}) when the
+     * port has been switched with {@link UsbSerialPort#setAsyncReads(int)}.
      */
     @Override
     public void run() {